@@ -0,0 +1,90 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * Insert_Team_Name
+ * BitSet Machine State
+ * A MachineState stored as one bit per base proposition of the PropNet, plus a
+ * 64-bit fingerprint (the XOR of a random key per true base proposition).
+ * Hashing is free and equality is a fingerprint check followed by a compare of
+ * the words, instead of hashing and comparing sets of sentences.
+ *
+ * A state is only ever equal to another INHBitSetMachineState, so that equals
+ * agrees with the fingerprint hash code; compare getContents() to check it
+ * against a plain MachineState (e.g. one from the prover).
+ */
+public class INHBitSetMachineState extends MachineState {
+
+	private final long[] bits;
+	private final long fingerprint;
+	private final GdlSentence[] sentences;  // Base sentence of each bit, shared by every state of a game
+
+	public INHBitSetMachineState(long[] bits, long fingerprint, GdlSentence[] sentences) {
+		this.bits = bits;
+		this.fingerprint = fingerprint;
+		this.sentences = sentences;
+	}
+
+	public static int numWords(int numBases) {
+		return (numBases + 63) >>> 6;
+	}
+
+	public boolean get(int base) {
+		return (this.bits[base >>> 6] & (1L << base)) != 0;
+	}
+
+	public long word(int i) {
+		return this.bits[i];
+	}
+
+	public int numWords() {
+		return this.bits.length;
+	}
+
+	/* True if this state was made over the given base sentences (i.e. by the same PropNet) */
+	public boolean hasBases(GdlSentence[] sentences) {
+		return this.sentences == sentences;
+	}
+
+	public long getFingerprint() {
+		return this.fingerprint;
+	}
+
+	/* Shares the sentence table, so the set is only built when somebody asks for it */
+	@Override
+	public Set<GdlSentence> getContents() {
+		Set<GdlSentence> contents = new HashSet<GdlSentence>();
+		for (int i = 0; i < this.sentences.length; i++) {
+			if (get(i)) {
+				contents.add(this.sentences[i]);
+			}
+		}
+		return contents;
+	}
+
+	@Override
+	public MachineState clone() {
+		return new INHBitSetMachineState(this.bits.clone(), this.fingerprint, this.sentences);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (this.fingerprint ^ (this.fingerprint >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof INHBitSetMachineState)) {
+			return false;
+		}
+		INHBitSetMachineState other = (INHBitSetMachineState) o;
+		return this.fingerprint == other.fingerprint && Arrays.equals(this.bits, other.bits);
+	}
+}
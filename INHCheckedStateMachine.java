@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * Insert_Team_Name
+ * Checked State Machine
+ * Our PropNet State Machine with the prover as a safety net: if the PropNet
+ * cannot be built from the rules, every query goes to a Prover State Machine
+ * instead, so a player never ends up without a working machine.
+ * A PropNet that builds can still be wrong, so the players check it against the
+ * prover in their metagame phase (verify) and switch to the prover if the two
+ * ever disagree. Both use the same prover.
+ */
+public class INHCheckedStateMachine extends StateMachine {
+
+	private static final long VERIFY_SHARE = 20;  // Percentage of the metagame time spent checking
+	private static final int VERIFY_GAMES = 50;
+
+	private final INHPropNetStateMachine propNet;
+	private List<Gdl> description;
+	private ProverStateMachine prover;  // Built when first needed, then the only one
+	private volatile StateMachine machine;  // The one answering queries
+
+	public INHCheckedStateMachine() {
+		this(new INHPropNetStateMachine());
+	}
+
+	public INHCheckedStateMachine(INHPropNetStateMachine propNet) {
+		this.propNet = propNet;
+	}
+
+	@Override
+	public void initialize(List<Gdl> description) {
+		this.description = description;
+		try {
+			this.propNet.initialize(description);
+			this.machine = this.propNet;
+		} catch (Exception | StackOverflowError e) {  // Deep rules can overflow the PropNet factory
+			e.printStackTrace();
+			System.out.println("PropNet could not be built, using the prover");
+			this.machine = getProver();
+		}
+	}
+
+	/* The PropNet if it is the machine answering queries, otherwise null */
+	public INHPropNetStateMachine getPropNet() {
+		return (this.machine == this.propNet) ? this.propNet : null;
+	}
+
+	/*
+	 * Plays random games on the PropNet and on the prover side by side for VERIFY_SHARE of the time
+	 * left before timeout (or VERIFY_GAMES games). If they ever disagree on a state, the legal moves,
+	 * terminality or the goals, the prover answers all queries from then on and this returns false:
+	 * the caller has to switch its state machine, so that its states come from the prover too.
+	 * A game cut short by the deadline counts as agreeing so far.
+	 */
+	public boolean verify(long timeout) {
+		if (getPropNet() == null) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		boolean verified;
+		try {
+			verified = agrees(now + (timeout - now) * VERIFY_SHARE / 100);
+		} catch (Exception e) {
+			e.printStackTrace();
+			verified = false;
+		}
+		if (!verified) {
+			System.out.println("PropNet disagrees with the prover, switching to the prover");
+			this.machine = getProver();
+		}
+		return verified;
+	}
+
+	private boolean agrees(long deadline)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		StateMachine prover = getProver();
+		INHPropNetStateMachine propNet = this.propNet.duplicate();
+		Random random = new Random();
+		for (int games = 0; games < VERIFY_GAMES && System.currentTimeMillis() < deadline; games++) {
+			MachineState proverState = prover.getInitialState();
+			MachineState propNetState = propNet.getInitialState();
+			while (System.currentTimeMillis() < deadline) {
+				if (!proverState.getContents().equals(propNetState.getContents())) {
+					return false;
+				}
+				boolean terminal = prover.isTerminal(proverState);
+				if (terminal != propNet.isTerminal(propNetState)) {
+					return false;
+				}
+				if (terminal) {
+					for (Role role : prover.getRoles()) {
+						if (prover.getGoal(proverState, role) != propNet.getGoal(propNetState, role)) {
+							return false;
+						}
+					}
+					break;
+				}
+				List<Move> jointMove = new ArrayList<Move>();
+				for (Role role : prover.getRoles()) {
+					List<Move> legalMoves = prover.getLegalMoves(proverState, role);
+					if (!new HashSet<Move>(legalMoves).equals(new HashSet<Move>(propNet.getLegalMoves(propNetState, role)))) {
+						return false;
+					}
+					jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+				}
+				proverState = prover.getNextState(proverState, jointMove);
+				propNetState = propNet.getNextState(propNetState, jointMove);
+			}
+		}
+		return true;
+	}
+
+	private ProverStateMachine getProver() {
+		if (this.prover == null) {
+			this.prover = new ProverStateMachine();
+			this.prover.initialize(this.description);
+		}
+		return this.prover;
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+		return this.machine.getGoal(state, role);
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state) {
+		return this.machine.isTerminal(state);
+	}
+
+	@Override
+	public List<Role> getRoles() {
+		return this.machine.getRoles();
+	}
+
+	@Override
+	public MachineState getInitialState() {
+		return this.machine.getInitialState();
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+		return this.machine.getLegalMoves(state, role);
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+		return this.machine.getNextState(state, moves);
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		return this.machine.getMachineStateFromSentenceList(sentenceList);
+	}
+}
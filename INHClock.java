@@ -0,0 +1,91 @@
+/**
+ * Insert_Team_Name
+ * Clock
+ * Decides when a search has to stop to answer before the real timeout of the move.
+ * Instead of a fixed margin per player it keeps two measured ones:
+ * the worst recent duration of one search iteration, so that an iteration that is
+ * started can still finish, and the time from the decision to stop until the move
+ * was returned (unwinding, merging trees), plus a small allowance for the network.
+ *
+ * Works on System.nanoTime(), which is cheap and never jumps, and stays stopped
+ * once it has said stop, so searches cannot restart after the decision.
+ */
+public class INHClock {
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final long NETWORK_MARGIN_NANOS = 500 * NANOS_PER_MILLI;  // Not measurable from here
+	private static final double ITERATION_DECAY = 0.999;  // How fast a one-off slow iteration is forgotten
+	private static final double FINISH_SAFETY = 2.0;  // Factor on the measured time from stop to return
+
+	private volatile long deadline;  // nanoTime of the real timeout
+	private volatile boolean stopped = true;
+	private volatile long stopTime;
+	private volatile long worstIteration = 0;
+	private volatile long finishMargin = 0;
+
+	/* Starts the clock for a move that has to be sent by timeout (wall-clock milliseconds) */
+	public void start(long timeout) {
+		long now = System.nanoTime();
+		this.deadline = now + (timeout - System.currentTimeMillis()) * NANOS_PER_MILLI;
+		this.stopTime = now;
+		this.stopped = false;
+	}
+
+	/* Stops the clock now (e.g. when a background search is no longer wanted) */
+	public void stop() {
+		this.stopTime = System.nanoTime();
+		this.stopped = true;
+	}
+
+	/* Whether another iteration still fits before the deadline */
+	public boolean hasTime() {
+		if (this.stopped) {
+			return false;
+		}
+		long now = System.nanoTime();
+		if (this.deadline - now > this.worstIteration + getMargin()) {
+			return true;
+		}
+		this.stopTime = now;
+		this.stopped = true;
+		return false;
+	}
+
+	/* Whether work expected to take nanos still fits before the deadline, with an iteration to spare; does not stop the clock */
+	public boolean hasTimeFor(long nanos) {
+		return !this.stopped && this.deadline - System.nanoTime() > nanos + this.worstIteration + getMargin();
+	}
+
+	/*
+	 * Records how long one iteration took. Several threads may call this at once; a sample lost
+	 * to a race only delays the estimate by one iteration, so no lock is taken.
+	 */
+	public void recordIteration(long nanos) {
+		long worst = (long) (this.worstIteration * ITERATION_DECAY);
+		this.worstIteration = Math.max(worst, nanos);
+	}
+
+	/* Called as the move is returned, to measure how long stopping took */
+	public void finish() {
+		if (this.stopped) {
+			long finishTime = System.nanoTime() - this.stopTime;
+			this.finishMargin = Math.max((long) (this.finishMargin * ITERATION_DECAY), (long) (finishTime * FINISH_SAFETY));
+		}
+		this.stopped = true;
+	}
+
+	public long getMargin() {
+		return NETWORK_MARGIN_NANOS + this.finishMargin;
+	}
+
+	/* Milliseconds left until the real timeout */
+	public long getRemainingMillis() {
+		return (this.deadline - System.nanoTime()) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public String toString() {
+		return "Time left: " + getRemainingMillis() + " ms (margin " + (getMargin() / NANOS_PER_MILLI)
+				+ " ms, worst iteration " + (this.worstIteration / NANOS_PER_MILLI) + " ms)";
+	}
+}
@@ -10,7 +10,6 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
  * Insert_Team_Name
@@ -20,6 +19,8 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  */
 public class INHDepthLimitedSearchPlayer extends GGPlayer {
 
+	private INHCheckedStateMachine checkedMachine;  // The PropNet, or the prover if it could not be built
+
 	/**
 	 * Number of levels we are allowed to search.
 	 */
@@ -36,26 +37,29 @@ public class INHDepthLimitedSearchPlayer extends GGPlayer {
 	}
 
 	/**
-	 * Currently, we can get along just fine by using the Prover State Machine.
-	 * We will implement a more optimized PropNet State Machine later. The Cached
-	 * State Machine is a wrapper that reduces the number of calls to the Prover
-	 * State Machine by returning results of method calls that have been made previously.
+	 * We use our PropNet State Machine, which compiles the rules passed to initialize
+	 * into a propositional network and answers queries with a forward pass instead of
+	 * proving them (or with the prover, if the PropNet cannot be built). The Cached
+	 * State Machine is a wrapper that reduces the number of calls to the machine by
+	 * returning results of method calls that have been made previously.
 	 * (e.g. getNextState calls or getLegalMoves for the same combination of parameters)
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		this.checkedMachine = new INHCheckedStateMachine();
+		return new CachedStateMachine(this.checkedMachine);
 	}
 
 	/**
-	 * If we wanted to use the metagame (or start) clock to compute something
-	 * about the game (or explore the game tree), we could do so here. Since
-	 * this is just a legal player, there is no need for such computation.
+	 * Uses the start clock to check our PropNet against the prover on random
+	 * games, and switches to the prover if the two disagree on anything.
 	 */
 	@Override
 	public void start(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
-
+		if (!this.checkedMachine.verify(timeout)) {
+			switchStateMachine(new CachedStateMachine(this.checkedMachine));
+		}
 	}
 
 	private MachineState simulate(Move move, MachineState state, StateMachine machine)
@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Insert_Team_Name
+ * MAST Table
+ * Move-Average Sampling Technique: the average outcome, for the role making it,
+ * of every move over all finished playouts. Playouts use it to prefer moves that
+ * have done well anywhere in the game.
+ *
+ * Moves are interned as dense ids (the offset of the role plus the move's index
+ * in the PropNet), so the table is a pair of primitive arrays with no hashing or
+ * boxing. One table is shared by all playout threads. Each thread's engine adds
+ * its playouts to its own Delta without locking, and merges it into the table
+ * every FLUSH_PLAYOUTS playouts, so the lock is taken once per batch instead of
+ * once per playout. Reads during a playout do not lock and may be slightly stale.
+ */
+public class INHMastTable {
+
+	// Average given to a move that has never been played, so new moves get tried
+	private static final double UNSEEN_AVERAGE = 100;
+	private static final int FLUSH_PLAYOUTS = 32;  // Playouts a thread keeps to itself before merging them
+
+	private final List<Delta> deltas = new ArrayList<Delta>();
+
+	private final int[] offsets;  // First move id of each role
+	private final double[] totals;
+	private final double[] counts;  // Fractional once decayed
+
+	public INHMastTable(INHPropNetStateMachine machine) {
+		int numRoles = machine.getRoles().size();
+		this.offsets = new int[numRoles];
+		int numIds = 0;
+		for (int r = 0; r < numRoles; r++) {
+			this.offsets[r] = numIds;
+			numIds += machine.getNumMoves(r);
+		}
+		this.totals = new double[numIds];
+		this.counts = new double[numIds];
+	}
+
+	public double getAverage(int role, int move) {
+		int id = this.offsets[role] + move;
+		double count = this.counts[id];
+		return (count > 0) ? this.totals[id] / count : UNSEEN_AVERAGE;
+	}
+
+	/* A delta for one playout thread; the table merges it in decay too, so nothing it holds is lost */
+	public synchronized Delta newDelta() {
+		Delta delta = new Delta();
+		this.deltas.add(delta);
+		return delta;
+	}
+
+	/*
+	 * The playouts of one thread not yet merged into the table. Only its thread updates it; the
+	 * table reads it when the thread flushes, and in decay, which runs between searches.
+	 */
+	public class Delta {
+		private final double[] totals = new double[INHMastTable.this.totals.length];
+		private final double[] counts = new double[INHMastTable.this.counts.length];
+		private int playouts = 0;
+
+		/*
+		 * Credits every move of a finished playout with the goal of the role that made it. history
+		 * holds numSteps joint moves of one move index per role; roles with no goal (-1) are skipped.
+		 */
+		public void update(int[] history, int numSteps, int[] goals) {
+			int numRoles = offsets.length;
+			for (int step = 0; step < numSteps; step++) {
+				for (int r = 0; r < numRoles; r++) {
+					if (goals[r] < 0) {
+						continue;
+					}
+					int id = offsets[r] + history[step * numRoles + r];
+					this.totals[id] += goals[r];
+					this.counts[id] += 1;
+				}
+			}
+			if (++this.playouts >= FLUSH_PLAYOUTS) {
+				flush();
+			}
+		}
+
+		public void flush() {
+			synchronized (INHMastTable.this) {
+				mergeInto();
+			}
+		}
+
+		/* Call with the table's lock held */
+		private void mergeInto() {
+			double[] tableTotals = INHMastTable.this.totals;
+			double[] tableCounts = INHMastTable.this.counts;
+			for (int id = 0; id < this.counts.length; id++) {
+				tableTotals[id] += this.totals[id];
+				tableCounts[id] += this.counts[id];
+			}
+			Arrays.fill(this.totals, 0);
+			Arrays.fill(this.counts, 0);
+			this.playouts = 0;
+		}
+	}
+
+	/*
+	 * Merges what the threads have not flushed yet, then keeps the averages but weighs them like
+	 * factor times as many playouts, so later turns can overrule them. Only call it while no
+	 * playouts are running.
+	 */
+	public synchronized void decay(double factor) {
+		for (int i = 0; i < this.deltas.size(); i++) {
+			this.deltas.get(i).mergeInto();
+		}
+		for (int id = 0; id < this.counts.length; id++) {
+			this.totals[id] *= factor;
+			this.counts[id] *= factor;
+		}
+	}
+}
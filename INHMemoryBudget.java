@@ -0,0 +1,25 @@
+/**
+ * Insert_Team_Name
+ * Memory Budget
+ * How many search tree nodes the memory governors of the MCTS players let a
+ * tree hold. Both players derive their budget from the same estimate of what
+ * one node costs, so the same heap gives them comparable trees.
+ *
+ * The estimate is for a node with its statistics, its share of the children
+ * lists and of the transposition map, and the machine state it keeps, which is
+ * most of it in either player.
+ */
+public final class INHMemoryBudget {
+
+	public static final int BYTES_PER_NODE = 512;
+	private static final int HEAP_PERCENT = 50;  // The rest is for the machines, playouts and the GC's headroom
+
+	private INHMemoryBudget() {
+	}
+
+	/* Nodes that fit in HEAP_PERCENT of the maximum heap, unless -Dinh.maxNodes says otherwise */
+	public static int maxNodes() {
+		long nodes = Runtime.getRuntime().maxMemory() / 100 * HEAP_PERCENT / BYTES_PER_NODE;
+		return Integer.getInteger("inh.maxNodes", (int) Math.min(Integer.MAX_VALUE, nodes));
+	}
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+
+/**
+ * Insert_Team_Name
+ * Monte Carlo Tree Search Benchmark
+ * Searches the initial state of a game for a fixed time with 1, 2, 4, ... threads
+ * (up to the number of cores) and prints the iterations per second of each run,
+ * along with the deepest path selected. Run it on a long game (e.g. a race or
+ * breakthrough variant) to compare speed on deep trees.
+ *
+ * With "deep" as the game key it needs no game: it builds synthetic trees of the
+ * given depths in an INHNodePool, a spine of nodes that each also have a few leaf
+ * children, and runs select and backpropagate over them the way the basic player
+ * does (a loop over a reused path buffer) and the way it did before (recursing
+ * once per level). Iterations do no playouts and add no nodes, so the difference
+ * in iterations per second is the traversal alone; a recursive run that overflows
+ * the stack says so.
+ *
+ * Usage: INHMonteCarloTreeSearchBenchmark [game key] [seconds per run] [root|tree]
+ *        INHMonteCarloTreeSearchBenchmark deep [seconds per run] [depth...]
+ */
+public class INHMonteCarloTreeSearchBenchmark {
+
+	private static final int LEAVES_PER_LEVEL = 3;  // Children of a spine node besides the next spine node
+	private static final int[] DEEP_DEPTHS = { 100, 1000, 10000 };
+
+	public static void main(String[] args) throws Exception {
+		String gameKey = (args.length > 0) ? args[0] : "ticTacToe";
+		long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+		if (gameKey.equals("deep")) {
+			int[] depths = DEEP_DEPTHS;
+			if (args.length > 2) {
+				depths = new int[args.length - 2];
+				for (int i = 2; i < args.length; i++) {
+					depths[i - 2] = Integer.parseInt(args[i]);
+				}
+			}
+			for (int depth : depths) {
+				benchmarkDeep(depth, seconds);
+			}
+			return;
+		}
+		boolean treeParallel = (args.length > 2) && args[2].equals("tree");
+		Game game = GameRepository.getDefaultRepository().getGame(gameKey);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for (int threads = 1; threads < cores; threads *= 2) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(cores);
+
+		double baseline = 0;
+		for (int threads : threadCounts) {
+			INHMonteCarloTreeSearchImprovedPlayer player = new INHMonteCarloTreeSearchImprovedPlayer();
+			player.setNumThreads(threads);
+			player.setTreeParallel(treeParallel);
+			StateMachine machine = player.getInitialStateMachine();
+			machine.initialize(game.getRules());
+			Role role = machine.getRoles().get(0);
+			MachineState state = machine.getInitialState();
+
+			long startTime = System.currentTimeMillis();
+			player.search(role, state, startTime + seconds * 1000);  // Less the player's own clock margin
+			long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+			player.abort();
+
+			double perSecond = player.getLastIterations() * 1000.0 / elapsed;
+			if (threads == 1) {
+				baseline = perSecond;
+			}
+			System.out.println(gameKey + ": " + threads + " thread(s), " + (long) perSecond + " iterations/s, speedup "
+					+ String.format("%.2f", perSecond / Math.max(1, baseline)) + ", deepest path " + player.getLastMaxPathLength());
+		}
+	}
+
+	/* Times both traversals on a synthetic tree of the given depth, the recursive one first */
+	private static void benchmarkDeep(int depth, long seconds) {
+		DeepTree tree = new DeepTree(depth);
+		tree.run(false, seconds * 100);  // Warm-up, so the JIT has compiled both before they are timed
+		String recursive;
+		double recursivePerSecond = 0;
+		try {
+			tree.run(true, seconds * 100);
+			recursivePerSecond = tree.run(true, seconds * 1000);
+			recursive = (long) recursivePerSecond + " iterations/s";
+		} catch (StackOverflowError e) {
+			recursive = "stack overflow";
+		}
+		double loopPerSecond = tree.run(false, seconds * 1000);
+		System.out.println("deep tree of " + depth + " levels: recursive " + recursive + ", loop " + (long) loopPerSecond
+				+ " iterations/s" + ((recursivePerSecond > 0) ? String.format(", speedup %.2f", loopPerSecond / recursivePerSecond) : "")
+				+ ", mean path " + String.format("%.1f", tree.meanPathLength()));
+	}
+
+	/*
+	 * A spine of depth expanded nodes in a pool, each with the next spine node (first, and scored so
+	 * that it usually wins) and LEAVES_PER_LEVEL visited leaves as children; the last spine node is
+	 * an unexpanded leaf. Select and backpropagate as in INHMonteCarloTreeSearchPlayer.
+	 */
+	private static class DeepTree {
+		private final INHNodePool pool = new INHNodePool();
+		private final int root;
+		private int[] path = new int[64];
+		private int[] pathEdges = new int[64];
+		private int pathLength = 0;
+		private long totalPathLength = 0;
+		private long iterations = 0;
+
+		DeepTree(int depth) {
+			this.root = this.pool.allocate(null, null, 0);
+			int node = this.root;
+			for (int level = 1; level < depth; level++) {
+				int next = this.pool.allocate(null, null, level);
+				this.pool.update(next, 100);
+				this.pool.reserveChildren(node, 1 + LEAVES_PER_LEVEL);
+				this.pool.addChild(node, next);
+				for (int i = 0; i < LEAVES_PER_LEVEL; i++) {
+					int leaf = this.pool.allocate(null, null, level);
+					this.pool.update(leaf, 0);
+					this.pool.addChild(node, leaf);
+				}
+				this.pool.setFlag(node, INHNodePool.EXPANDED);
+				this.pool.update(node, 100);
+				node = next;
+			}
+		}
+
+		/* Iterations per second over millis milliseconds */
+		double run(boolean recursive, long millis) {
+			long startTime = System.nanoTime();
+			long endTime = startTime + millis * 1000000;
+			this.totalPathLength = 0;
+			this.iterations = 0;
+			while (System.nanoTime() < endTime) {
+				for (int i = 0; i < 100; i++) {
+					this.pathLength = 0;
+					if (recursive) {
+						selectRecursive(this.root, INHNodePool.NONE);
+						backpropagateRecursive(0, 100);
+					} else {
+						select(this.root);
+						backpropagate(100);
+					}
+					this.totalPathLength += this.pathLength;
+				}
+				this.iterations += 100;
+			}
+			return this.iterations * 1e9 / Math.max(1, System.nanoTime() - startTime);
+		}
+
+		double meanPathLength() {
+			return (double) this.totalPathLength / Math.max(1, this.iterations);
+		}
+
+		private void addToPath(int node, int edge) {
+			if (this.pathLength == this.path.length) {
+				this.path = Arrays.copyOf(this.path, this.path.length * 2);
+				this.pathEdges = Arrays.copyOf(this.pathEdges, this.path.length);
+			}
+			this.path[this.pathLength] = node;
+			this.pathEdges[this.pathLength] = edge;
+			this.pathLength++;
+		}
+
+		/* The best edge below an expanded node, by the selection kernel */
+		private int bestEdge(int node) {
+			return INHUcb.best(this.pool.getEdgeUtilities(), this.pool.getEdgeVisits(), this.pool.getFirstEdge(node),
+					this.pool.getChildCount(node), 1.0, INHUcb.explorationScale(this.pool.getVisits(node)));
+		}
+
+		private int select(int node) {
+			int edge = INHNodePool.NONE;
+			while (true) {
+				addToPath(node, edge);
+				if (!this.pool.hasFlag(node, INHNodePool.EXPANDED)) {
+					return node;
+				}
+				edge = bestEdge(node);
+				node = this.pool.getEdgeChild(edge);
+			}
+		}
+
+		private void backpropagate(double score) {
+			for (int i = this.pathLength - 1; i >= 0; i--) {
+				this.pool.update(this.path[i], score);
+				if (this.pathEdges[i] != INHNodePool.NONE) {
+					this.pool.updateEdge(this.pathEdges[i], score);
+				}
+			}
+		}
+
+		/* The same two, one call per level, as the players had them */
+		private int selectRecursive(int node, int edge) {
+			addToPath(node, edge);
+			if (!this.pool.hasFlag(node, INHNodePool.EXPANDED)) {
+				return node;
+			}
+			int best = bestEdge(node);
+			return selectRecursive(this.pool.getEdgeChild(best), best);
+		}
+
+		private void backpropagateRecursive(int i, double score) {
+			if (i == this.pathLength) {
+				return;
+			}
+			backpropagateRecursive(i + 1, score);
+			this.pool.update(this.path[i], score);
+			if (this.pathEdges[i] != INHNodePool.NONE) {
+				this.pool.updateEdge(this.pathEdges[i], score);
+			}
+		}
+	}
+}
@@ -1,6 +1,25 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.ggp.base.apps.player.Player;
 import org.ggp.base.util.statemachine.MachineState;
@@ -11,7 +30,6 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
  * Insert_Team_Name
@@ -21,32 +39,269 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  */
 public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 
+	/*
+	 * Node statistics are updated without locks so that several threads can share one tree: visits,
+	 * utilities and virtual losses in the atomic arrays of the tree's INHSharedNodePool, the rest
+	 * through field updaters, with doubles kept as the bits of a long so they can be compare-and-set.
+	 */
+	private static final AtomicIntegerFieldUpdater<Node> EXPANDING = AtomicIntegerFieldUpdater.newUpdater(Node.class, "expanding");
+	private static final AtomicIntegerFieldUpdater<Node> RAVE_VISITS = AtomicIntegerFieldUpdater.newUpdater(Node.class, "raveVisits");
+	private static final AtomicLongFieldUpdater<Node> RAVE_UTILITY = AtomicLongFieldUpdater.newUpdater(Node.class, "raveUtilityBits");
+	private static final AtomicIntegerFieldUpdater<Node> UNSOLVED = AtomicIntegerFieldUpdater.newUpdater(Node.class, "unsolvedChildren");
+	private static final AtomicIntegerFieldUpdater<Node> PESSIMISTIC = AtomicIntegerFieldUpdater.newUpdater(Node.class, "pessimistic");
+	private static final AtomicIntegerFieldUpdater<Node> OPTIMISTIC = AtomicIntegerFieldUpdater.newUpdater(Node.class, "optimistic");
+	private static final AtomicIntegerFieldUpdater<Node> SOLVING = AtomicIntegerFieldUpdater.newUpdater(Node.class, "solving");
+
+	private static final int MIN_GOAL = 0;
+	private static final int MAX_GOAL = 100;
+	private static final int MAX_STUCK_SELECTIONS = 1000;  // Before a search yields between selections that find nothing
+
+	/* Adds amount to a double kept as the bits of a long */
+	private static void addDouble(AtomicLongFieldUpdater<Node> updater, Node node, double amount) {
+		while (true) {
+			long bits = updater.get(node);
+			long newBits = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + amount);
+			if (updater.compareAndSet(node, bits, newBits)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * A node of a MonteCarloTree. Its visits, utility, virtual loss (threads currently searching
+	 * below it) and children are in the tree's pool, under id; the rest is kept here.
+	 */
 	class Node {
-		public boolean expanded = false;  // Meant for checking whether we should expand on node
-		public double utility = 0;
-		public double score = 0;
-		public int visits = 0;
+		int id = INHSharedNodePool.NONE;  // In the tree's pool; renumbered only when the pool is compacted
+		public volatile boolean expanded = false;  // Meant for checking whether we should expand on node
+		volatile int expanding = 0;  // Set by the one thread allowed to expand this node
+		public volatile double score = 0;
+
+		// All-Moves-As-First statistics of a min node: playouts in which our player made its move later on
+		public volatile int raveVisits = 0;
+		volatile long raveUtilityBits = Double.doubleToRawLongBits(0);
+		public int moveIndex = -1;  // Index of previousPlayerMove in the PropNet, for min nodes
+		public double prior = 0;  // MAST value of the move(s) leading here when the parent was expanded
+
+		public volatile boolean isTerminal = false;  // Known as soon as the state is, so selection never asks the machine
+		public volatile boolean isSolved = false;
+		volatile int solving = 0;  // Set by the one thread that proves this node, so its parent counts it once
+		public int goal = 0;  // Our reward, if terminal
 
-		public boolean isTerminal = false;
-		public boolean isSolved = false;
+		// Score-bounded MCTS: the true value lies in [pessimistic, optimistic]; solved once they meet
+		public volatile int pessimistic = MIN_GOAL;
+		public volatile int optimistic = MAX_GOAL;
+		public volatile int unsolvedChildren = 0;  // Children not yet proven, counted down as they are
+
+		// N-player mode: total reward of every role (by role index) over the playouts through a max node,
+		// and for a min node the opponents that have a choice there; null otherwise
+		public volatile double[] rewards;
+		public int[] actingRoles;
+		public int[] goals;  // Reward of every role, if terminal
+
+		public volatile Decoupled decoupled;  // Set instead of min node children in a simultaneous-move state
+		public int jointKey = -1;  // Child of a decoupled node: the joint move leading here, as Decoupled encodes it
 
 		public Move previousPlayerMove;  // Move made by our player previously (for max nodes)
 
-		public Node parent;
-		public List<Node> children;
+		public volatile Node parent;  // Parent the node was created under; transposed nodes have others too
 
-		public MachineState state;  // Current state of game
+		public volatile MachineState state;  // Current state of game (null until a lazy child is first selected)
+		public List<Move> jointMove;  // For a max node not yet materialized: the joint move leading to it
+		public volatile Node replacement;  // Set instead of state when materializing found a transposition
 
 		public boolean isMaxNode;  // True if max node, false if min node
+		public final int depth;  // Levels below the root the tree was first built from
 
 		public Node(Node parent, Move previousPlayerMove, MachineState state, boolean isMaxNode) {
 			this.previousPlayerMove = previousPlayerMove;
 
 			this.parent = parent;
-			this.children = new ArrayList<Node>();
 
 			this.state = state;
 			this.isMaxNode = isMaxNode;
+			this.depth = (parent == null) ? 0 : parent.depth + 1;
+		}
+
+		public double getRaveUtility() {
+			return Double.longBitsToDouble(this.raveUtilityBits);
+		}
+
+		public void addRave(double amount) {
+			RAVE_VISITS.incrementAndGet(this);
+			addDouble(RAVE_UTILITY, this, amount);
+		}
+
+		/* Locks the node once per playout; selection reads the totals without locking and may see them slightly stale */
+		public void addRewards(double[] amounts) {
+			synchronized (this) {
+				double[] totals = this.rewards;
+				if (totals == null) {
+					totals = new double[amounts.length];
+				}
+				for (int r = 0; r < amounts.length; r++) {
+					totals[r] += amounts[r];
+				}
+				this.rewards = totals;
+			}
+		}
+
+		/* Average reward of the given roles per visit, counting visits still under way as nothing for them */
+		public double getRewardOf(int[] roles, double visits) {
+			double[] totals = this.rewards;
+			if (totals == null) {
+				return 0;
+			}
+			double total = 0;
+			for (int i = 0; i < roles.length; i++) {
+				total += totals[roles[i]];
+			}
+			return total / roles.length / visits;
+		}
+	}
+
+	/*
+	 * Outcomes of the playouts of one iteration, per move our player made in them, so that a
+	 * move counts once per playout however often it was played. One per search thread.
+	 */
+	class AmafRecord {
+		private final int[] counts;  // Playouts each move index was played in
+		private final double[] totals;  // Total score of those playouts
+		private final int[] seen;  // Stamp of the playout each move was last counted in
+		private int stamp = 0;  // Never reset, so seen never has to be cleared
+		private final int[] touched;  // Move indices with a nonzero count, to clear only those
+		private int numTouched = 0;
+		private int numPlayouts = 0;
+
+		public AmafRecord(int numMoves) {
+			this.counts = new int[numMoves];
+			this.totals = new double[numMoves];
+			this.seen = new int[numMoves];
+			this.touched = new int[numMoves];
+		}
+
+		public void addPlayout(INHPlayoutEngine engine, double score) {
+			this.numPlayouts++;
+			this.stamp++;
+			for (int i = 0; i < engine.getNumPlayed(); i++) {
+				int move = engine.getPlayed(i);
+				if (this.seen[move] != this.stamp) {
+					this.seen[move] = this.stamp;
+					add(move, 1, score);
+				}
+			}
+		}
+
+		/* A move made in the tree was made before every playout of the iteration */
+		public void addTreeMove(int move, double score) {
+			if (move >= 0) {
+				int count = Math.max(1, this.numPlayouts);
+				add(move, count, score * count);
+			}
+		}
+
+		private void add(int move, int count, double total) {
+			if (this.counts[move] == 0) {
+				this.touched[this.numTouched++] = move;
+			}
+			this.counts[move] += count;
+			this.totals[move] += total;
+		}
+
+		public boolean hasMoves() {
+			return this.numTouched > 0;
+		}
+
+		public boolean contains(int move) {
+			return move >= 0 && this.counts[move] > 0;
+		}
+
+		/* Mean score of the playouts the move was made in */
+		public double getScore(int move) {
+			return this.totals[move] / this.counts[move];
+		}
+
+		public void clear() {
+			for (int i = 0; i < this.numTouched; i++) {
+				this.counts[this.touched[i]] = 0;
+				this.totals[this.touched[i]] = 0;
+			}
+			this.numTouched = 0;
+			this.numPlayouts = 0;
+		}
+	}
+
+	/*
+	 * Decoupled UCT statistics of a max node where several roles have a choice at once: visits and
+	 * reward totals per role and legal move, so the storage is the sum of the roles' move counts instead
+	 * of their product. Each role picks its move by UCB on its own statistics alone, and the joint
+	 * successor is only created (as a child max node) the first time that combination is picked.
+	 * A selection counts as a visit straight away, which keeps tree-parallel threads apart like a
+	 * virtual loss until its reward comes in. Guarded by its own lock.
+	 */
+	class Decoupled {
+		final List<List<Move>> legals;  // By role index
+		final int[] radix;  // Joint move key = sum over roles of move index * radix
+		final int[][] visits;
+		final double[][] totals;
+		final Map<Integer, Node> successors = new HashMap<Integer, Node>();
+		int numVisits = 0;
+		int childCapacity = 0;  // Edges the node's range in the pool has room for (see appendChild)
+
+		Decoupled(List<List<Move>> legals) {
+			this.legals = legals;
+			this.radix = new int[legals.size()];
+			this.visits = new int[legals.size()][];
+			this.totals = new double[legals.size()][];
+			int radix = 1;
+			for (int r = 0; r < legals.size(); r++) {
+				this.radix[r] = radix;
+				radix *= legals.get(r).size();
+				this.visits[r] = new int[legals.get(r).size()];
+				this.totals[r] = new double[legals.get(r).size()];
+			}
+		}
+
+		/*
+		 * Picks a move for every role and returns the key of the joint move; call with the lock held.
+		 * Rewards are scaled to [0, 1] so the exploration term keeps its usual weight, and every move
+		 * of a role is tried once first (the scale is never 0, so unvisited moves always win).
+		 * Role fixedRole (if not -1) makes move fixedMove instead of choosing.
+		 */
+		int select(int fixedRole, int fixedMove) {
+			double scale = INHUcb.explorationScale(Math.max(2, this.numVisits));
+			int key = 0;
+			for (int r = 0; r < this.visits.length; r++) {
+				int[] visits = this.visits[r];
+				int best = (r == fixedRole) ? fixedMove : INHUcb.best(this.totals[r], visits, visits.length, 0.01, scale);
+				visits[best]++;
+				key += best * this.radix[r];
+			}
+			this.numVisits++;
+			return key;
+		}
+
+		int moveIndex(int key, int role) {
+			return (key / this.radix[role]) % this.legals.get(role).size();
+		}
+
+		List<Move> jointMove(int key) {
+			List<Move> jointMove = new ArrayList<Move>(this.legals.size());
+			for (int r = 0; r < this.legals.size(); r++) {
+				jointMove.add(this.legals.get(r).get(moveIndex(key, r)));
+			}
+			return jointMove;
+		}
+
+		/*
+		 * Credits the moves of a joint move with the reward of the role making each: score for our
+		 * player, and without per-role rewards what we did not get for every opponent, as at min nodes.
+		 */
+		synchronized void update(int key, int playerIndex, double score, double[] rewards) {
+			for (int r = 0; r < this.totals.length; r++) {
+				double reward = (r == playerIndex) ? score : (rewards != null) ? rewards[r] : 100 - score;
+				this.totals[r][moveIndex(key, r)] += reward;
+			}
 		}
 	}
 
@@ -54,229 +309,946 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 		public Role playerRole;
 		public StateMachine machine;
 		public Node rootNode;
+		public volatile int maxPathLength = 0;  // Deepest path selected so far, for the per-move stats
+		volatile Move ponderMove;  // While pondering after our move: the only move selection follows from the root
+
+		/*
+		 * N-player mode: every max node also keeps the rewards of all roles, and at a min node the
+		 * opponents with a choice pick the joint move best for themselves (max^n) instead of the one
+		 * worst for us (paranoid), which lumps all opponents into one. Goals of all roles come from
+		 * the same playout.
+		 */
+		public final boolean nPlayer;
+		private final int numRoles;
+		private final int playerIndex;
+		public final boolean decoupledUct;  // Decoupled nodes where several roles move at once (see Decoupled)
+
+		/*
+		 * Max nodes by state, so that a state reached by several move orders is one node and
+		 * the tree is a DAG. Only nodes at the same depth are shared, which keeps it acyclic
+		 * in games where a state can come back.
+		 */
+		private ConcurrentHashMap<MachineState, Node> transpositions = new ConcurrentHashMap<MachineState, Node>();
+
+		// Statistics and children of the nodes, compacted when the root moves down and after an eviction
+		private final INHSharedNodePool<Node> pool = new INHSharedNodePool<Node>();
+
+		// Memory governor: nodes in the tree (approximate between evictions) and how many it may have
+		private final AtomicInteger numNodes = new AtomicInteger(1);
+		private final AtomicBoolean evicting = new AtomicBoolean(false);
+		private volatile long evictNanosPerNode = EVICT_NANOS_PER_NODE;  // Measured by every eviction
+		// Every iteration holds the read lock from selection to the end of its backup; eviction takes
+		// the write lock, so it never collapses a node under a thread or rebuilds the map under an insert
+		private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+		public volatile int nodeBudget = Integer.MAX_VALUE;
 
 		public MonteCarloTree(Role playerRole, MachineState state, StateMachine machine) {
-			this.rootNode = new Node(null, null, state, true);
+			this.rootNode = newNode(null, null, state, true);
+			this.rootNode.isTerminal = findTerminalp(state, machine);
 			this.playerRole = playerRole;
 			this.machine = machine;
+			List<Role> roles = machine.getRoles();
+			this.numRoles = roles.size();
+			this.playerIndex = roles.indexOf(playerRole);
+			this.nPlayer = (nPlayerMode == null) ? this.numRoles > 2 : Boolean.parseBoolean(nPlayerMode);
+			this.decoupledUct = INHMonteCarloTreeSearchImprovedPlayer.this.decoupledUct;
+			this.transpositions.put(state, this.rootNode);
 		}
 
-		/* Expands min nodes */
-		private void expandMin(Node node, Move playerMove) throws MoveDefinitionException, TransitionDefinitionException {
-			List<List<Move>> possibleJointMoves = findLegalJoints(this.playerRole, playerMove, node.state, this.machine);
-			for (int i = 0; i < possibleJointMoves.size(); i++) {
-				node.children.add(new Node(node, playerMove, findNext(possibleJointMoves.get(i), node.state, this.machine), true));
-			}
+		public int getNumNodes() {
+			return this.numNodes.get();
 		}
 
-		/* Expands max nodes */
-		private void expandMax(Node node) throws MoveDefinitionException, TransitionDefinitionException {
-			List<Move> legalMoves = findLegals(this.playerRole, node.state, this.machine);
-			for (int i = 0; i < legalMoves.size(); i++) {
-				Node childNode = new Node(node, legalMoves.get(i), node.state, false);
-				expandMin(childNode, legalMoves.get(i));
-				node.children.add(childNode);
-			}
+		private Node newNode(Node parent, Move previousPlayerMove, MachineState state, boolean isMaxNode) {
+			Node node = new Node(parent, previousPlayerMove, state, isMaxNode);
+			node.id = this.pool.allocate(node);
+			return node;
 		}
 
-		private double selectFn(Node node) {
-			double factor = (node.isMaxNode) ? -1.0 : 1.0;
-			return factor * node.utility / node.visits + Math.sqrt(2 * Math.log(node.parent.visits) / node.visits);
+		public int visits(Node node) {
+			return this.pool.getVisits(node.id);
 		}
 
-		private Node selectHelper(Node node)
-				throws MoveDefinitionException, TransitionDefinitionException {
-			if (node == null || node.isSolved) {
-				return null;
+		public double utility(Node node) {
+			return this.pool.getUtility(node.id);
+		}
+
+		private int virtualLoss(Node node) {
+			return this.pool.getVirtualLoss(node.id);
+		}
+
+		/* The range of the children of node in the pool; see child */
+		private long children(Node node) {
+			return this.pool.getChildren(node.id);
+		}
+
+		private Node child(long range, int k) {
+			return this.pool.getChild(INHSharedNodePool.first(range) + k);
+		}
+
+		/* A copy of the children of node, for the code off the hot path */
+		public List<Node> childList(Node node) {
+			long range = children(node);
+			int count = INHSharedNodePool.count(range);
+			List<Node> children = new ArrayList<Node>(count);
+			for (int k = 0; k < count; k++) {
+				children.add(child(range, k));
 			}
-			if (node.visits == 0) {
-				return node;
+			return children;
+		}
+
+		/* Publishes children as the children of node, with a single volatile write */
+		private void setChildren(Node node, List<Node> children) {
+			int[] ids = new int[children.size()];
+			for (int k = 0; k < ids.length; k++) {
+				ids[k] = children.get(k).id;
 			}
-			for (int i = 0; i < node.children.size(); i++) {
-				Node childNode = node.children.get(i);
-				if (childNode.isSolved) {
+			this.pool.setChildren(node.id, ids, ids.length);
+		}
+
+		/*
+		 * Expands min nodes into one unmaterialized child per joint move; the successor states
+		 * are only computed when a child is first selected. Several threads may get here at once.
+		 */
+		private void expandMin(Node node, StateMachine machine) throws MoveDefinitionException {
+			synchronized (node) {
+				if (node.expanded) {
+					return;
+				}
+				List<List<Move>> possibleJointMoves = findLegalJoints(this.playerRole, node.previousPlayerMove, node.state, machine);
+				List<Node> children = new ArrayList<Node>(possibleJointMoves.size());
+				for (int i = 0; i < possibleJointMoves.size(); i++) {
+					Node childNode = newNode(node, node.previousPlayerMove, null, true);
+					childNode.jointMove = possibleJointMoves.get(i);
+					childNode.prior = jointMovePrior(childNode.jointMove, machine);
+					children.add(childNode);
+				}
+				if (this.nPlayer) {
+					node.actingRoles = actingRoles(possibleJointMoves);
+				}
+				sortByPrior(children);
+				this.numNodes.addAndGet(children.size());
+				node.unsolvedChildren = children.size();
+				setChildren(node, children);
+				node.expanded = true;
+			}
+		}
+
+		/* The opponents whose move differs between the joint moves, or null if none has a choice */
+		private int[] actingRoles(List<List<Move>> jointMoves) {
+			int[] acting = new int[this.numRoles];
+			int numActing = 0;
+			for (int r = 0; r < this.numRoles; r++) {
+				if (r == this.playerIndex) {
 					continue;
 				}
-				for (int j = 0; j < childNode.children.size(); j++) {
-					Node grandChildNode = childNode.children.get(j);
-					if (grandChildNode.visits == 0) {
-						return grandChildNode;
+				Move first = jointMoves.get(0).get(r);
+				for (int i = 1; i < jointMoves.size(); i++) {
+					if (!jointMoves.get(i).get(r).equals(first)) {
+						acting[numActing++] = r;
+						break;
 					}
 				}
 			}
+			return (numActing == 0) ? null : Arrays.copyOf(acting, numActing);
+		}
+
+		/* How good the opponents' moves in a joint move have been for them, by MAST; 0 without a PropNet */
+		private double jointMovePrior(List<Move> jointMove, StateMachine machine) {
+			INHMastTable mast = INHMonteCarloTreeSearchImprovedPlayer.this.mast;
+			if (mast == null || !(machine instanceof INHPropNetStateMachine)) {
+				return 0;
+			}
+			INHPropNetStateMachine propNet = (INHPropNetStateMachine) machine;
+			int playerIndex = propNet.getRoleIndex(this.playerRole);
+			double prior = 0;
+			for (int r = 0; r < jointMove.size(); r++) {
+				int move = propNet.getMoveIndex(r, jointMove.get(r));
+				if (r != playerIndex && move >= 0) {
+					prior += mast.getAverage(r, move);
+				}
+			}
+			return prior;
+		}
 
-			/* Select child */
-			double score = -1;
-			Node firstResult = null;
+		/* Best prior first, so progressive widening lets the most promising children in first */
+		private void sortByPrior(List<Node> children) {
+			Collections.sort(children, new Comparator<Node>() {
+				@Override
+				public int compare(Node a, Node b) {
+					return Double.compare(b.prior, a.prior);
+				}
+			});
+		}
 
-			for (int i = 0; i < node.children.size(); i++) {
-				Node childNode = node.children.get(i);
-				if (childNode.isSolved) {
-					continue;
+		/* Expands max nodes into one min node per legal move, publishing them with a single volatile write */
+		private void expandMax(Node node, StateMachine machine) throws MoveDefinitionException {
+			List<Move> legalMoves = findLegals(this.playerRole, node.state, machine);
+			List<Node> children = new ArrayList<Node>(legalMoves.size());
+			for (int i = 0; i < legalMoves.size(); i++) {
+				Node childNode = newNode(node, legalMoves.get(i), node.state, false);
+				INHMastTable mast = INHMonteCarloTreeSearchImprovedPlayer.this.mast;
+				if (machine instanceof INHPropNetStateMachine) {
+					INHPropNetStateMachine propNet = (INHPropNetStateMachine) machine;
+					int roleIndex = propNet.getRoleIndex(this.playerRole);
+					childNode.moveIndex = propNet.getMoveIndex(roleIndex, childNode.previousPlayerMove);
+					if (mast != null && childNode.moveIndex >= 0) {
+						childNode.prior = mast.getAverage(roleIndex, childNode.moveIndex);
+					}
+				}
+				children.add(childNode);
+			}
+			sortByPrior(children);
+			this.numNodes.addAndGet(children.size());
+			node.unsolvedChildren = children.size();
+			setChildren(node, children);
+		}
+
+		/*
+		 * Computes the state of a child of a min node the first time it is selected. If the state
+		 * is already in the tree at the same depth the existing node is shared instead: the child
+		 * is swapped out of a copy of the children, so readers of the old range are unaffected.
+		 * path ends with minNode; a proof the shared node brings along is passed up it.
+		 */
+		private Node materialize(Node minNode, Node childNode, StateMachine machine, List<Node> path)
+				throws TransitionDefinitionException, GoalDefinitionException {
+			if (childNode.state != null) {
+				return childNode;
+			}
+			synchronized (minNode) {
+				if (childNode.replacement != null) {
+					return childNode.replacement;
 				}
-				double newScore = selectFn(childNode);
-				if (!findTerminalp(childNode.state, this.machine) && (firstResult == null || newScore > score)) {
-					score = newScore;
-					firstResult = childNode;
+				if (childNode.state != null) {
+					return childNode;
 				}
+				MachineState nextState = findNext(childNode.jointMove, minNode.state, machine);
+				Node existing = this.transpositions.get(nextState);
+				if (existing != null && existing.depth == childNode.depth) {
+					List<Node> children = childList(minNode);
+					int index = children.indexOf(childNode);
+					if (children.contains(existing)) {  // Several joint moves can lead to the same state
+						children.remove(index);
+						UNSOLVED.decrementAndGet(minNode);
+					} else {
+						children.set(index, existing);
+						if (existing.isSolved && childSolved(minNode, existing)) {  // Proven through another parent
+							provePath(path);
+						}
+					}
+					setChildren(minNode, children);
+					childNode.replacement = existing;
+					return existing;
+				}
+				if (findTerminalp(nextState, machine)) {
+					childNode.goal = findReward(this.playerRole, nextState, machine);
+					if (this.nPlayer) {
+						childNode.goals = findRewards(nextState, machine);
+					}
+					childNode.isTerminal = true;
+				}
+				childNode.state = nextState;  // Published last, so the flags are seen with it
+				childNode.jointMove = null;
+				if (existing == null) {
+					this.transpositions.putIfAbsent(nextState, childNode);
+				}
+				return childNode;
 			}
+		}
 
-			if (firstResult == null) {
-				return null;
+		private int[] findRewards(MachineState state, StateMachine machine) throws GoalDefinitionException {
+			List<Integer> goals = machine.getGoals(state);
+			int[] rewards = new int[goals.size()];
+			for (int r = 0; r < rewards.length; r++) {
+				rewards[r] = goals.get(r);
 			}
+			return rewards;
+		}
 
-			/* Select grand-child */
-			score = -1;
-			Node secondResult = null;
+		/*
+		 * UCT, counting each thread currently below the node as a visit that the player
+		 * choosing it lost, so other threads are steered to other paths. Our moves blend in
+		 * their AMAF value with a weight that fades as the node's own visits come in.
+		 */
+		private double selectFn(Node node, Node parent, double scale) {
+			double factor = (node.isMaxNode) ? -1.0 : 1.0;
+			int virtualLoss = virtualLoss(node);
+			int visits = visits(node) + virtualLoss;
+			double utility = utility(node) + ((node.isMaxNode) ? 100.0 * virtualLoss : 0);
+			double value = factor * utility * INHUcb.inverse(visits);
+			if (parent.actingRoles != null) {  // N-player: the opponents choosing here maximize their own reward
+				value = node.getRewardOf(parent.actingRoles, visits);
+			}
+			int raveVisits = node.raveVisits;
+			if (raveVisits > 0) {
+				double beta = Math.sqrt(raveEquivalence / (3.0 * visits + raveEquivalence));
+				value = (1 - beta) * value + beta * node.getRaveUtility() / raveVisits;
+			}
+			return value + scale * INHUcb.inverseSqrt(visits);
+		}
 
-			for (int j = 0; j < firstResult.children.size(); j++) {
-				Node grandChildNode = firstResult.children.get(j);
-				if (grandChildNode.isSolved) {
+		/*
+		 * Appends the nodes it descends through to path, since a transposed node has several
+		 * parents. Descends in a loop rather than recursing, so deep games cannot overflow the stack.
+		 * Only the first widenedCount unsolved children of a node (best prior first) are considered,
+		 * and at the root only the ponderMove's, if one is set.
+		 */
+		private Node selectHelper(Node node, StateMachine machine, List<Node> path)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			while (true) {
+				if (node == null || node.isSolved) {
+					return null;
+				}
+				path.add(node);
+				if (visits(node) == 0 || !node.expanded) {  // New, or collapsed by the memory governor
+					return node;
+				}
+				Move onlyMove = (node == this.rootNode) ? this.ponderMove : null;
+				Decoupled decoupled = node.decoupled;
+				if (decoupled != null) {
+					Node next = selectDecoupled(node, decoupled, machine, onlyMove);
+					if (next.isSolved) {  // Still a joint move the roles may pick; its value is just known
+						path.add(next);
+						return next;
+					}
+					node = next;
 					continue;
 				}
-				double newScore = selectFn(grandChildNode);
-				if (!findTerminalp(grandChildNode.state, this.machine) && (secondResult == null || newScore > score)) {
-					score = newScore;
-					secondResult = grandChildNode;
+				long children = children(node);
+				int numChildren = INHSharedNodePool.count(children);
+				int limit = widenedCount(node);
+				int considered = 0;
+				for (int i = 0; i < numChildren && considered < limit; i++) {
+					Node childNode = child(children, i);
+					if (childNode.isSolved || isPruned(childNode, node)
+							|| (onlyMove != null && !onlyMove.equals(childNode.previousPlayerMove))) {
+						continue;
+					}
+					considered++;
+					if (!childNode.expanded) {
+						expandMin(childNode, machine);
+					}
+					long grandChildren = children(childNode);
+					int numGrandChildren = INHSharedNodePool.count(grandChildren);
+					int grandLimit = widenedCount(childNode);
+					int grandConsidered = 0;
+					for (int j = 0; j < numGrandChildren && grandConsidered < grandLimit; j++) {
+						Node grandChildNode = child(grandChildren, j);
+						if (grandChildNode.isSolved || isPruned(grandChildNode, childNode)) {
+							continue;
+						}
+						grandConsidered++;
+						if (visits(grandChildNode) == 0 && virtualLoss(grandChildNode) == 0) {
+							path.add(childNode);
+							grandChildNode = materialize(childNode, grandChildNode, machine, path);
+							path.add(grandChildNode);
+							return grandChildNode;
+						}
+					}
+				}
+
+				/* Select child */
+				double score = -1;
+				Node firstResult = null;
+
+				double scale = INHUcb.explorationScale(visits(node) + virtualLoss(node));  // Same for all siblings
+				considered = 0;
+				for (int i = 0; i < numChildren && considered < limit; i++) {
+					Node childNode = child(children, i);
+					if (childNode.isSolved || isPruned(childNode, node)
+							|| (onlyMove != null && !onlyMove.equals(childNode.previousPlayerMove))) {
+						continue;
+					}
+					considered++;
+					double newScore = selectFn(childNode, node, scale);
+					if (!childNode.isTerminal && (firstResult == null || newScore > score)) {
+						score = newScore;
+						firstResult = childNode;
+					}
+				}
+
+				if (firstResult == null) {
+					settle(node);
+					return null;
+				}
+
+				/* Select grand-child */
+				score = -1;
+				Node secondResult = null;
+
+				long grandChildren = children(firstResult);
+				int numGrandChildren = INHSharedNodePool.count(grandChildren);
+				int grandLimit = widenedCount(firstResult);
+				scale = INHUcb.explorationScale(visits(firstResult) + virtualLoss(firstResult));
+				int grandConsidered = 0;
+				for (int j = 0; j < numGrandChildren && grandConsidered < grandLimit; j++) {
+					Node grandChildNode = child(grandChildren, j);
+					if (grandChildNode.isSolved || isPruned(grandChildNode, firstResult)) {
+						continue;
+					}
+					grandConsidered++;
+					if (grandChildNode.state == null) {  // Not materialized yet in a stale list
+						continue;
+					}
+					double newScore = selectFn(grandChildNode, firstResult, scale);
+					if (!grandChildNode.isTerminal && (secondResult == null || newScore > score)) {
+						score = newScore;
+						secondResult = grandChildNode;
+					}
+				}
+
+				if (secondResult == null) {
+					settle(firstResult);
+					return null;
+				}
+				path.add(firstResult);
+				node = secondResult;
+			}
+		}
+
+		/* Score-bounded MCTS: a child whose bounds show it cannot change the value of node is not searched */
+		private boolean isPruned(Node child, Node node) {
+			if (node.actingRoles != null) {  // N-player: the opponents do not minimize our value
+				return false;
+			}
+			return node.isMaxNode ? child.optimistic <= node.pessimistic : child.pessimistic >= node.optimistic;
+		}
+
+		/*
+		 * Rescans the children of a node selection found nothing left to search under. The only place
+		 * the solver looks at all children: a child proven through another parent (a transposition) never
+		 * counted down this one, and children cut off by the bounds are as good as proven.
+		 * The recount replaces the counter only if no backup counted a proof down meanwhile (a CAS,
+		 * retried otherwise); a backup still on its way up can count a child the recount already
+		 * left out, so childSolved confirms a counter at zero by a rescan before trusting it.
+		 */
+		private void settle(Node node) {
+			long children = children(node);
+			int numChildren = INHSharedNodePool.count(children);
+			if (node.isSolved || !node.expanded || numChildren == 0) {
+				return;
+			}
+			if (node.actingRoles != null) {
+				for (int i = 0; i < numChildren; i++) {
+					if (!child(children, i).isSolved) {
+						return;
+					}
+				}
+				solve(node, preferredValue(node));
+				return;
+			}
+			for (int i = 0; i < numChildren; i++) {
+				Node childNode = child(children, i);
+				if (childNode.isSolved) {
+					tighten(node, (int) childNode.score);
+				}
+			}
+			int counted;
+			int unsolved;
+			do {
+				counted = UNSOLVED.get(node);
+				unsolved = countUnsolved(node);
+			} while (!UNSOLVED.compareAndSet(node, counted, unsolved));
+			if (unsolved == 0) {
+				solve(node, node.isMaxNode ? node.pessimistic : node.optimistic);
+			}
+		}
+
+		/* Children of node neither proven nor cut off by the bounds; both only ever grow */
+		private int countUnsolved(Node node) {
+			long children = children(node);
+			int unsolved = 0;
+			for (int i = 0; i < INHSharedNodePool.count(children); i++) {
+				Node childNode = child(children, i);
+				if (!childNode.isSolved && !isPruned(childNode, node)) {
+					unsolved++;
 				}
 			}
+			return unsolved;
+		}
 
-			return selectHelper(secondResult);
+		/* Progressive widening: how many children of node selection may look at, growing with its visits */
+		private int widenedCount(Node node) {
+			return widenBase + (int) (widenFactor * Math.sqrt(visits(node)));
 		}
 
-		public void expand(Node node)
+		/* Only the first thread to get here expands; any other one just simulates from the node */
+		public void expand(Node node, StateMachine machine)
 				throws MoveDefinitionException, TransitionDefinitionException {
-			if (node.expanded) {
+			if (node.expanded || !EXPANDING.compareAndSet(node, 0, 1)) {
 				return;
 			}
-			if (findTerminalp(node.state, this.machine)) {
-				node.isTerminal = true;
-			} else {
-				expandMax(node);
+			if (!node.isTerminal) {
+				Decoupled decoupled = this.decoupledUct ? newDecoupled(node.state, machine) : null;
+				if (decoupled != null) {
+					node.decoupled = decoupled;
+				} else {
+					expandMax(node, machine);
+				}
 			}
 			node.expanded = true;
 		}
 
-		public Node select() throws MoveDefinitionException, TransitionDefinitionException {
-			return selectHelper(this.rootNode);
+		/* Statistics for a decoupled node, or null if at most one role has a choice in the state */
+		private Decoupled newDecoupled(MachineState state, StateMachine machine) throws MoveDefinitionException {
+			List<Role> roles = machine.getRoles();
+			List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+			int numChoosing = 0;
+			for (int r = 0; r < roles.size(); r++) {
+				List<Move> moves = machine.getLegalMoves(state, roles.get(r));
+				if (moves.size() > 1) {
+					numChoosing++;
+				}
+				legals.add(moves);
+			}
+			return (numChoosing > 1) ? new Decoupled(legals) : null;
+		}
+
+		/*
+		 * Lets every role of a decoupled node pick its move and returns the successor for the joint
+		 * move, creating it on its first visit. Successors are not looked up as transpositions, since
+		 * backpropagate reads the joint move from the child's key, which is only valid under this node.
+		 */
+		private Node selectDecoupled(Node node, Decoupled decoupled, StateMachine machine, Move onlyMove)
+				throws TransitionDefinitionException, GoalDefinitionException {
+			synchronized (decoupled) {
+				int onlyIndex = (onlyMove != null) ? decoupled.legals.get(this.playerIndex).indexOf(onlyMove) : -1;
+				int key = decoupled.select((onlyIndex >= 0) ? this.playerIndex : -1, onlyIndex);
+				Node childNode = decoupled.successors.get(key);
+				if (childNode != null) {
+					return childNode;
+				}
+				List<Move> jointMove = decoupled.jointMove(key);
+				MachineState nextState = findNext(jointMove, node.state, machine);
+				childNode = newNode(node, jointMove.get(this.playerIndex), nextState, true);
+				childNode.jointKey = key;
+				if (findTerminalp(nextState, machine)) {
+					childNode.goal = findReward(this.playerRole, nextState, machine);
+					if (this.nPlayer) {
+						childNode.goals = findRewards(nextState, machine);
+					}
+					childNode.isTerminal = true;
+				}
+				decoupled.successors.put(key, childNode);
+				decoupled.childCapacity = this.pool.appendChild(node.id, childNode.id, decoupled.childCapacity);
+				this.numNodes.incrementAndGet();
+				return childNode;
+			}
+		}
+
+		/* Fills path from the root to the selected node and marks it with a virtual loss, which backpropagate takes back */
+		public Node select(StateMachine machine, List<Node> path)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			path.clear();
+			Node selectedNode = selectHelper(this.rootNode, machine, path);
+			if (selectedNode != null) {
+				for (int i = 0; i < path.size(); i++) {
+					this.pool.addVirtualLoss(path.get(i).id, 1);
+				}
+			}
+			return selectedNode;
+		}
+
+		/* Takes back the virtual loss select put on the path, for an iteration that ends without a backup */
+		private void releaseVirtualLoss(List<Node> path) {
+			for (int i = 0; i < path.size(); i++) {
+				this.pool.addVirtualLoss(path.get(i).id, -1);
+			}
 		}
 
-		public double simulate(Node node, int count)
+		public double simulate(Node node, int count, StateMachine machine)
 				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			return simulate(node, count, machine, null, null);
+		}
+
+		/*
+		 * Records the moves we made in each playout into amaf, if given (not for leaf-parallel batches),
+		 * and the average reward of every role into rewards, if given.
+		 */
+		public double simulate(Node node, int count, StateMachine machine, AmafRecord amaf, double[] rewards)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			if (rewards != null) {
+				Arrays.fill(rewards, 0);
+			}
 			if (node.isTerminal) {
-				return depthCharge(this.playerRole, node.state, this.machine);
+				if (rewards != null && node.goals != null) {
+					for (int r = 0; r < rewards.length; r++) {
+						rewards[r] = node.goals[r];
+					}
+				}
+				return node.goal;
+			}
+			if (playoutPool != null && count > 1) {
+				return simulateInParallel(node, count, rewards);
 			}
 			double total = 0;
 			for (int i = 0; i < count; i++) {
-				total = total + depthCharge(this.playerRole, node.state, this.machine);
+				double score = playout(node.state, machine, rewards);
+				total = total + score;
+				if (amaf != null) {
+					amaf.addPlayout(playoutEngines.get(), score);
+				}
+			}
+			if (rewards != null) {
+				for (int r = 0; r < rewards.length; r++) {
+					rewards[r] /= count;
+				}
 			}
 			return total / count;
 		}
 
-		public void backpropagate(Node node, double score, boolean isSolvedScore) {
-			node.visits++;
-			node.utility += score;
-			if (node.isTerminal) {
-				node.score = score;
-				node.isSolved = true;
-			} else if (isSolvedScore) {
-				boolean solved = true;
-				node.score = score;
-				if (node.isMaxNode) {
-					for (int i = 0; i < node.children.size(); i++) {
-						Node childNode = node.children.get(i);
-						if (!childNode.isSolved) {
-							solved = false;
-						}
-						if (childNode.score > node.score) {
-							node.score = childNode.score;
-						}
-						if (node.score >= 100) {
-							solved = true;
-							break;
+		/*
+		 * On a PropNet the calling thread's playout engine runs the depth charge without allocating.
+		 * Adds the goals of all roles to rewards, if given, from the same terminal state.
+		 */
+		private double playout(MachineState state, StateMachine machine, double[] rewards)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			ThreadLocal<INHPlayoutEngine> engines = playoutEngines;
+			if (engines != null) {
+				INHPlayoutEngine engine = engines.get();
+				int goal = engine.playout(state, this.playerRole);
+				if (rewards != null) {
+					engine.addGoals(rewards);
+				}
+				return goal;
+			}
+			if (rewards == null) {
+				return depthCharge(this.playerRole, state, machine);
+			}
+			int[] goals = findRewards(machine.performDepthCharge(state, null), machine);
+			for (int r = 0; r < goals.length; r++) {
+				rewards[r] += goals[r];
+			}
+			return goals[this.playerIndex];
+		}
+
+		/* Splits the playouts into one batch per playout thread, each using that thread's own engine */
+		private double simulateInParallel(final Node node, int count, double[] rewards)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			int numBatches = Math.min(count, leafThreads);
+			List<Callable<double[]>> batches = new ArrayList<Callable<double[]>>(numBatches);
+			for (int b = 0; b < numBatches; b++) {
+				final int batchSize = count / numBatches + ((b < count % numBatches) ? 1 : 0);
+				batches.add(new Callable<double[]>() {
+					@Override
+					public double[] call() throws Exception {  // Total goal of every role over the batch
+						INHPlayoutEngine engine = playoutEngines.get();
+						double[] totals = new double[numRoles];
+						for (int i = 0; i < batchSize; i++) {
+							engine.playout(node.state, playerRole);
+							engine.addGoals(totals);
 						}
+						return totals;
 					}
-				} else {
-					for (int i = 0; i < node.children.size(); i++) {
-						Node childNode = node.children.get(i);
-						if (!childNode.isSolved) {
-							solved = false;
-						}
-						if (childNode.score < node.score) {
-							node.score = childNode.score;
+				});
+			}
+
+			double total = 0;
+			try {
+				List<Future<double[]>> results = playoutPool.invokeAll(batches);
+				for (int b = 0; b < results.size(); b++) {
+					double[] totals = results.get(b).get();
+					total = total + totals[this.playerIndex];
+					if (rewards != null) {
+						for (int r = 0; r < rewards.length; r++) {
+							rewards[r] += totals[r] / count;
 						}
-						if (node.score <= 0) {
-							solved = true;
-							break;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof MoveDefinitionException) {
+					throw (MoveDefinitionException) cause;
+				} else if (cause instanceof TransitionDefinitionException) {
+					throw (TransitionDefinitionException) cause;
+				} else if (cause instanceof GoalDefinitionException) {
+					throw (GoalDefinitionException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+			return total / count;
+		}
+
+		/*
+		 * Gives every min node on or beside the path the AMAF outcome of its move, if our player made
+		 * that move at any point below its parent in this iteration: in the playouts or in the tree.
+		 */
+		public void backpropagateAmaf(List<Node> path, double score, AmafRecord amaf) {
+			for (int index = path.size() - 1; index >= 0; index--) {
+				Node node = path.get(index);
+				if (!node.isMaxNode) {
+					amaf.addTreeMove(node.moveIndex, score);
+				} else if (amaf.hasMoves()) {
+					long children = children(node);
+					for (int i = 0; i < INHSharedNodePool.count(children); i++) {
+						Node childNode = child(children, i);
+						if (amaf.contains(childNode.moveIndex)) {
+							childNode.addRave(amaf.getScore(childNode.moveIndex));
 						}
 					}
 				}
-				if (solved) {
-					node.isSolved = true;
+			}
+		}
+
+		/*
+		 * Backs the score up along the path it was selected through (leaf first), not the parent pointers.
+		 * A node proven by this backup is passed up to its parent, which counts down its unsolved children
+		 * and tightens its bound instead of rescanning them, so a proof costs O(depth).
+		 */
+		public void backpropagate(List<Node> path, double score) {
+			backpropagate(path, score, null);
+		}
+
+		/* In N-player mode rewards holds the average reward of every role, which the max nodes add up */
+		public void backpropagate(List<Node> path, double score, double[] rewards) {
+			Node provenChild = null;
+			for (int index = path.size() - 1; index >= 0; index--) {
+				Node node = path.get(index);
+				this.pool.update(node.id, score);
+				if (rewards != null && node.isMaxNode) {
+					node.addRewards(rewards);
+				}
+				Decoupled decoupled = node.decoupled;
+				if (decoupled != null && index + 1 < path.size()) {
+					decoupled.update(path.get(index + 1).jointKey, this.playerIndex, score, rewards);
+				}
+				this.pool.addVirtualLoss(node.id, -1);
+				boolean proven = false;
+				if (node.isTerminal) {
+					proven = solve(node, node.goal);
+				} else if (provenChild != null) {
+					proven = childSolved(node, provenChild);
+				}
+				provenChild = proven ? node : null;
+			}
+		}
+
+		/* The last node of path was proven outside a backup: tells its ancestors on the path, as backpropagate does */
+		private void provePath(List<Node> path) {
+			int index = path.size() - 2;
+			while (index >= 0 && childSolved(path.get(index), path.get(index + 1))) {
+				index--;
+			}
+		}
+
+		/*
+		 * A max node is worth at least its best proven child, a min node at most its worst one. It is
+		 * proven once no child is left unsolved, or once that bound is already the best possible.
+		 */
+		private boolean childSolved(Node node, Node child) {
+			if (node.decoupled != null) {  // Simultaneous moves: a proven joint move does not prove the node
+				return false;
+			}
+			int remaining = UNSOLVED.decrementAndGet(node);
+			if (node.actingRoles != null) {
+				return remaining <= 0 && countUnsolved(node) == 0 && solve(node, preferredValue(node));
+			}
+			tighten(node, (int) child.score);
+			boolean done = remaining <= 0 && countUnsolved(node) == 0;  // The counter can run ahead, see settle
+			if (node.isMaxNode) {
+				int value = node.pessimistic;
+				return (value >= MAX_GOAL || done) && solve(node, value);
+			}
+			int value = node.optimistic;
+			return (value <= MIN_GOAL || done) && solve(node, value);
+		}
+
+		/*
+		 * N-player: our value of the child the opponents choosing at a proven min node like best, by
+		 * their rewards (exact for terminal children, averages for the others). Scans the children,
+		 * but only once, when the last of them is proven.
+		 */
+		private int preferredValue(Node node) {
+			long children = children(node);
+			Node best = null;
+			double bestReward = -1;
+			for (int i = 0; i < INHSharedNodePool.count(children); i++) {
+				Node childNode = child(children, i);
+				double reward = childNode.getRewardOf(node.actingRoles, Math.max(1, visits(childNode)));
+				if (best == null || reward > bestReward) {
+					best = childNode;
+					bestReward = reward;
+				}
+			}
+			return (int) best.score;
+		}
+
+		/* Raises the pessimistic bound of a max node, or lowers the optimistic bound of a min node, to a proven child's value */
+		private void tighten(Node node, int value) {
+			AtomicIntegerFieldUpdater<Node> bound = node.isMaxNode ? PESSIMISTIC : OPTIMISTIC;
+			while (true) {
+				int current = bound.get(node);
+				if ((node.isMaxNode ? current >= value : current <= value) || bound.compareAndSet(node, current, value)) {
+					return;
 				}
 			}
-			if (node.parent != null) {
-				backpropagate(node.parent, score, node.isSolved);
+		}
+
+		/* Returns true only for the one caller that proved the node, so that it alone tells the parent */
+		private boolean solve(Node node, int value) {
+			if (!SOLVING.compareAndSet(node, 0, 1)) {
+				return false;
 			}
+			node.pessimistic = value;
+			node.optimistic = value;
+			node.score = value;
+			node.isSolved = true;
+			return true;
 		}
 
-		public Move chooseCurrBestMove() {
-			double bestScore = -1;
-			Move bestMove = null;
-			for (int i = 0; i < this.rootNode.children.size(); i++) {
-				Node childNode = rootNode.children.get(i);
-				if (childNode.visits > 0) {
-					double score = childNode.utility / childNode.visits;
-					if (childNode.isSolved) {
-						score = childNode.score;
+		public long search()
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			return search(this.machine);
+		}
+
+		/*
+		 * Grows the tree until time runs out or it is solved, returning the number of iterations.
+		 * Several threads may call this at once on the same tree, each with its own machine.
+		 */
+		public long search(StateMachine machine)
+				throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+			long iterations = 0;
+			int stuck = 0;  // Selections in a row that found nothing to search
+			List<Node> path = new ArrayList<Node>(64);  // Reused by every iteration of this thread
+			AmafRecord amaf = newAmafRecord(this.playerRole);
+			double[] rewards = this.nPlayer ? new double[this.numRoles] : null;
+			INHPlayoutEngine engine = (playoutEngines != null) ? playoutEngines.get() : null;
+			INHSimulationController controller = simulationController;
+			while (clock.hasTime()) {
+				if (isSolved()) {
+					break;
+				}
+				if (stuck > MAX_STUCK_SELECTIONS) {  // Let the threads still materializing what is left run
+					Thread.yield();
+				}
+				long startTime = System.nanoTime();
+				long playoutStart;
+				long playoutEnd;
+				long stepsBefore;
+				int count;
+				Lock iteration = this.structure.readLock();
+				iteration.lock();
+				Node selectedNode = null;
+				boolean backedUp = false;
+				try {
+					selectedNode = select(machine, path);
+					if (selectedNode == null) {  // Each retry settles a node selection got stuck at
+						stuck++;
+						continue;
 					}
-					if (score > bestScore) {
-						bestScore = score;
-						bestMove = childNode.previousPlayerMove;
+					stuck = 0;
+					expand(selectedNode, machine);
+					playoutStart = System.nanoTime();
+					stepsBefore = (engine != null) ? engine.getTotalSteps() : 0;
+					count = (selectedNode.isTerminal) ? 0 : controller.getSimulations();
+					double score = simulate(selectedNode, count, machine, amaf, rewards);
+					playoutEnd = System.nanoTime();
+					if (amaf != null) {
+						backpropagateAmaf(path, score, amaf);
+						amaf.clear();
 					}
+					backedUp = true;  // The backup takes the virtual loss off the path itself
+					backpropagate(path, score, rewards);
+				} finally {
+					if (selectedNode != null && !backedUp) {  // Expanding or simulating threw: the tree is reused next turn
+						releaseVirtualLoss(path);
+					}
+					iteration.unlock();
+				}
+				long steps = (engine != null && playoutPool == null) ? engine.getTotalSteps() - stepsBefore : -1;
+				controller.record(System.nanoTime() - startTime - (playoutEnd - playoutStart), playoutEnd - playoutStart, count, steps);
+				clock.recordIteration(System.nanoTime() - startTime);
+				evictIfDue();
+				iterations++;
+				if (path.size() > this.maxPathLength) {
+					this.maxPathLength = path.size();
 				}
 			}
-			return bestMove;
+			return iterations;
 		}
-		public boolean verifyTreeHelper(Node node, int depth) {
+
+		/* Prints one node of the tree dump and returns whether it has visited children to check */
+		private boolean printSubtreeRoot(Node node, int depth) {
 			char[] c = new char[2 * depth];
 			Arrays.fill(c,  '-');
 			String tabs = new String(c);
-			System.out.println(tabs + "Subtree root node - maxNode: " + node.isMaxNode + ", num children: " + node.children.size() + ", utility: " + node.utility + ", is solved: " + node.isSolved + ", score: " + node.score + ", visits: " + node.visits);
+			List<Node> children = childList(node);
+			System.out.println(tabs + "Subtree root node - maxNode: " + node.isMaxNode + ", num children: " + children.size() + ", utility: " + utility(node) + ", is solved: " + node.isSolved + ", score: " + node.score + ", visits: " + visits(node));
 			int numVisitedChildren = 0;
-			for (int i = 0; i < node.children.size(); i++) {
-				if (node.children.get(i).visits > 0) {
+			for (int i = 0; i < children.size(); i++) {
+				if (visits(children.get(i)) > 0) {
 					numVisitedChildren++;
 				}
 			}
-			if (numVisitedChildren == 0) {
+			return numVisitedChildren > 0;
+		}
+
+		/* Checks the visited subtree depth first with an explicit stack, so deep trees cannot overflow the call stack */
+		public boolean verifyTreeHelper(Node rootNode, int rootDepth) {
+			if (!printSubtreeRoot(rootNode, rootDepth)) {
 				return true;
 			}
-			boolean found = false;
-			for (int i = 0; i < node.children.size(); i++) {
-				Node childNode = node.children.get(i);
-				if (childNode.visits == 0) {
-					continue;
+			List<Node> stack = new ArrayList<Node>();
+			List<Integer> nextChild = new ArrayList<Integer>();
+			List<Boolean> found = new ArrayList<Boolean>();
+			stack.add(rootNode);
+			nextChild.add(0);
+			found.add(false);
+			while (true) {
+				int top = stack.size() - 1;
+				Node node = stack.get(top);
+				int i = nextChild.get(top);
+				List<Node> children = childList(node);
+				while (i < children.size() && visits(children.get(i)) == 0) {
+					i++;
 				}
-				if (!verifyTreeHelper(childNode, depth + 1)) {
-					return false;
+				nextChild.set(top, i);
+
+				Node childNode;
+				if (i < children.size()) {
+					childNode = children.get(i);
+					if (printSubtreeRoot(childNode, rootDepth + top + 1)) {
+						stack.add(childNode);
+						nextChild.add(0);
+						found.add(false);
+						continue;
+					}
+				} else {
+					// Every visited child of node has been checked
+					if (!found.get(top)) {
+						System.out.println("Node utility doesn't match any of the children utilities");
+						return false;
+					}
+					stack.remove(top);
+					nextChild.remove(top);
+					found.remove(top);
+					if (top == 0) {
+						return true;
+					}
+					childNode = node;
+					top--;
+					node = stack.get(top);
 				}
-				if (node.isMaxNode && childNode.utility > node.utility) {
-					System.out.println(tabs + "Node is of type max but utility is " + node.utility + " while child node utility is: " + childNode.utility);
+
+				char[] c = new char[2 * (rootDepth + top)];
+				Arrays.fill(c,  '-');
+				String tabs = new String(c);
+				if (node.isMaxNode && utility(childNode) > utility(node)) {
+					System.out.println(tabs + "Node is of type max but utility is " + utility(node) + " while child node utility is: " + utility(childNode));
 					return false;
 				}
-				if (!node.isMaxNode && childNode.utility < node.utility) {
-					System.out.println(tabs + "Node is of type min but utility is " + node.utility + " while child node utility is: " + childNode.utility);
+				if (!node.isMaxNode && utility(childNode) < utility(node)) {
+					System.out.println(tabs + "Node is of type min but utility is " + utility(node) + " while child node utility is: " + utility(childNode));
 					return false;
 				}
-				if (node.utility == childNode.utility) {
-					found = true;
+				if (utility(node) == utility(childNode)) {
+					found.set(top, true);
 				}
+				nextChild.set(top, nextChild.get(top) + 1);
 			}
-			if (!found) {
-				System.out.println("Node utility doesn't match any of the children utilities");
-			}
-			return found;
 		}
 
 		public boolean verifyTree() {
@@ -286,14 +1258,473 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 		public boolean isSolved() {
 			return this.rootNode.isSolved;
 		}
+
+		/*
+		 * Makes the max node reached by the moves played since the last search the new
+		 * root, so its statistics carry over. Looks up to maxTurns of our turns down, since
+		 * turns where we only had one legal move are not searched. Returns false (and leaves
+		 * the tree alone) if the state was never expanded.
+		 */
+		public boolean promote(MachineState state, int maxTurns) {
+			if (this.rootNode.state.equals(state)) {  // Searched from the start clock or pondered on a noop turn
+				return true;
+			}
+			List<Node> frontier = new ArrayList<Node>();
+			frontier.add(this.rootNode);
+			for (int turn = 0; turn < maxTurns; turn++) {
+				List<Node> nextFrontier = new ArrayList<Node>();
+				for (int i = 0; i < frontier.size(); i++) {
+					addNextTurn(frontier.get(i), nextFrontier);
+				}
+				for (int i = 0; i < nextFrontier.size(); i++) {
+					Node node = nextFrontier.get(i);
+					if (node.state.equals(state)) {
+						node.parent = null;
+						this.rootNode = node;
+						compact();
+						return true;
+					}
+				}
+				frontier = nextFrontier;
+			}
+			return false;
+		}
+
+		/* Adds the materialized max nodes one turn below a max node: its grandchildren, or a decoupled node's children */
+		private void addNextTurn(Node node, List<Node> nextTurn) {
+			List<Node> children = childList(node);
+			if (node.decoupled != null) {
+				nextTurn.addAll(children);
+				return;
+			}
+			for (int j = 0; j < children.size(); j++) {
+				List<Node> grandChildren = childList(children.get(j));
+				for (int k = 0; k < grandChildren.size(); k++) {
+					if (grandChildren.get(k).state != null) {
+						nextTurn.add(grandChildren.get(k));
+					}
+				}
+			}
+		}
+
+		/*
+		 * Compacts the pool, which recycles the nodes no longer reachable from the root and the edges
+		 * of replaced children, then renumbers the nodes, rebuilds the transposition map from them and
+		 * recounts them. Only called where no thread is in the tree: by promote between searches, and
+		 * by evict under the write lock.
+		 */
+		private void compact() {
+			this.pool.compact(this.rootNode.id);
+			this.transpositions.clear();
+			for (int id = 0; id < this.pool.size(); id++) {
+				Node node = this.pool.getNode(id);
+				node.id = id;
+				if (node.decoupled != null) {  // Its range was rewritten without room to spare
+					node.decoupled.childCapacity = INHSharedNodePool.count(children(node));
+				}
+				if (node.isMaxNode && node.state != null && !this.transpositions.containsKey(node.state)) {
+					this.transpositions.put(node.state, node);
+				}
+			}
+			this.numNodes.set(this.pool.size());
+		}
+
+		/*
+		 * Evicts if the tree is over its budget and the clock can still cover an eviction of its
+		 * size at the last measured cost per node. One that cannot is left to a later iteration
+		 * with more time, i.e. to pondering or the next search, rather than overrun the move.
+		 */
+		void evictIfDue() {
+			int nodes = this.numNodes.get();
+			if (nodes > this.nodeBudget && clock.hasTimeFor(nodes * this.evictNanosPerNode)) {
+				evict();
+			}
+		}
+
+		/*
+		 * Brings the tree back under EVICT_TO percent of its budget by collapsing the least visited
+		 * expanded max nodes: their children are dropped (and recycled when the pool is compacted) and
+		 * they become leaves again. Their own statistics already include everything below them, so nothing the
+		 * parents know is lost, and a collapsed node is simply expanded again if selected. One thread
+		 * evicts at a time, holding the write lock: the others finish the iteration they are in (so no
+		 * node on a path being selected or backed up is collapsed) and wait for it at their next one.
+		 */
+		private void evict() {
+			if (!this.evicting.compareAndSet(false, true)) {
+				return;
+			}
+			long startTime = System.nanoTime();
+			int nodes = this.numNodes.get();
+			Lock exclusive = this.structure.writeLock();
+			exclusive.lock();
+			try {
+				List<Node> candidates = new ArrayList<Node>();
+				collectCandidates(candidates);
+				Collections.sort(candidates, new Comparator<Node>() {
+					@Override
+					public int compare(Node a, Node b) {
+						return Integer.compare(visits(a), visits(b));
+					}
+				});
+				long target = (long) this.nodeBudget * EVICT_TO / 100;
+				long remaining = this.numNodes.get();
+				Map<Node, Boolean> dropped = new IdentityHashMap<Node, Boolean>();  // Counted as freed in this pass
+				for (int i = 0; i < candidates.size() && remaining > target; i++) {
+					Node node = candidates.get(i);
+					if (dropped.containsKey(node)) {
+						continue;
+					}
+					remaining -= countBelow(node, dropped);
+					collapse(node);
+				}
+				compact();
+				this.evictNanosPerNode = Math.max(1, (System.nanoTime() - startTime) / Math.max(1, nodes));
+			} finally {
+				exclusive.unlock();
+				this.evicting.set(false);
+			}
+		}
+
+		/* The expanded max nodes other than the root, each once however many parents share it */
+		private void collectCandidates(List<Node> candidates) {
+			Map<Node, Boolean> seen = new IdentityHashMap<Node, Boolean>();
+			List<Node> stack = new ArrayList<Node>();
+			stack.add(this.rootNode);
+			while (!stack.isEmpty()) {
+				Node node = stack.remove(stack.size() - 1);
+				if (seen.put(node, Boolean.TRUE) != null) {
+					continue;
+				}
+				List<Node> children = childList(node);
+				if (node.isMaxNode && node.expanded && node != this.rootNode && !children.isEmpty()) {
+					candidates.add(node);
+				}
+				stack.addAll(children);
+			}
+		}
+
+		/*
+		 * Adds the nodes below node to dropped and returns how many were not in it yet, so a node
+		 * shared by several collapsed parents is counted once. One that is still reachable through
+		 * a parent that is kept is counted too; compact recounts exactly afterwards.
+		 */
+		private int countBelow(Node node, Map<Node, Boolean> dropped) {
+			int count = 0;
+			List<Node> stack = childList(node);
+			while (!stack.isEmpty()) {
+				Node below = stack.remove(stack.size() - 1);
+				if (dropped.put(below, Boolean.TRUE) == null) {
+					count++;
+					stack.addAll(childList(below));
+				}
+			}
+			return count;
+		}
+
+		private void collapse(Node node) {
+			node.decoupled = null;
+			this.pool.clearChildren(node.id);
+			node.expanded = false;
+			EXPANDING.set(node, 0);
+		}
 	}
 
-	private long TIME_LIMIT = 3000;
-	private long currTimeout = 0;
-	private int numSimulations = 10;
+	private final INHClock clock = new INHClock();  // Shared by all search threads
+	private int numSimulations = 10;  // Playouts per leaf until the controller has measured some
+	private INHSimulationController simulationController = newSimulationController();
+	private int reuseTurns = 2;  // How many of our turns down we look for the current state
+	private int widenBase = 4;  // Children considered at a node's first visit
+	private double widenFactor = 1.0;  // Children let in per square root of its visits
+	private double raveEquivalence = 500;  // Visits at which a node's own value and its AMAF value weigh the same
+
+	// Root parallelism: each thread grows its own tree with its own state machine.
+	// Tree parallelism: the threads share one tree, kept apart by virtual losses.
+	private int numThreads = Integer.getInteger("inh.threads", Runtime.getRuntime().availableProcessors());
+	private boolean treeParallel = Boolean.getBoolean("inh.treeParallel");
+	private ExecutorService threadPool;
+	private INHCheckedStateMachine checkedMachine;  // The PropNet, or the prover if it could not be built
+	private List<StateMachine> threadMachines;
+
+	// Leaf parallelism: the playouts of one selected node are run as a batch on this pool
+	private int leafThreads = Integer.getInteger("inh.leafThreads", 1);
+	private ExecutorService playoutPool;
+
+	// Playout engine of each search or playout thread, each on its own copy of the PropNet
+	private ThreadLocal<INHPlayoutEngine> playoutEngines;
+	private final SplittableRandom seeds = new SplittableRandom();
+
+	// Playout policy shared by all engines (MAST), aged every turn so it follows the game
+	private INHMastTable mast;
+	private double mastEpsilon = 0.4;  // Chance of a uniformly random playout move instead of the best average
+	private double mastDecay = 0.5;
+
+	private List<MonteCarloTree> trees;  // Kept between turns so the statistics under the played moves survive
+
+	// Memory governor: nodes all trees together may hold, and the share of its budget a tree is cut back to
+	private int maxNodes = INHMemoryBudget.maxNodes();
+	private static final int EVICT_TO = 75;
+	private static final long EVICT_NANOS_PER_NODE = 500;  // Assumed cost of an eviction until one is measured
 
-	private boolean doWeHaveTime() {
-		return (currTimeout - System.currentTimeMillis()) > TIME_LIMIT;
+	// Metagame: shares of the start clock (in percent) for checking the PropNet and for calibration playouts
+	private static final long CALIBRATE_SHARE = 10;
+
+	// Pondering: searching the trees in the background between our moves
+	private static final long PONDER_LIMIT = 10 * 60 * 1000;  // In case no move request or stop ever comes
+	private boolean ponder = Boolean.parseBoolean(System.getProperty("inh.ponder", "true"));
+	private List<Future<Long>> ponderSearches;
+
+	// Decoupled UCT in simultaneous-move states (see Decoupled)
+	private boolean decoupledUct = Boolean.parseBoolean(System.getProperty("inh.decoupled", "true"));
+
+	// N-player mode (see MonteCarloTree): "true", "false", or unset for games of more than two roles
+	private String nPlayerMode = System.getProperty("inh.nPlayer");
+	private long lastIterations = 0;
+	private int lastMaxPathLength = 0;
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public void setLeafThreads(int leafThreads) {
+		this.leafThreads = Math.max(1, leafThreads);
+	}
+
+	public void setMaxNodes(int maxNodes) {
+		this.maxNodes = Math.max(1, maxNodes);
+	}
+
+	public void setPonder(boolean ponder) {
+		this.ponder = ponder;
+	}
+
+	public void setDecoupledUct(boolean decoupledUct) {
+		this.decoupledUct = decoupledUct;
+	}
+
+	public void setNPlayer(boolean nPlayer) {
+		this.nPlayerMode = Boolean.toString(nPlayer);
+	}
+
+	public void setTreeParallel(boolean treeParallel) {
+		this.treeParallel = treeParallel;
+	}
+
+	public long getLastIterations() {
+		return this.lastIterations;
+	}
+
+	public int getLastMaxPathLength() {
+		return this.lastMaxPathLength;
+	}
+
+	/* The PropNet, or null if the prover answers the queries */
+	private INHPropNetStateMachine getPropNet() {
+		return (this.checkedMachine == null) ? null : this.checkedMachine.getPropNet();
+	}
+
+	/*
+	 * One state machine per thread. The PropNet can be duplicated cheaply; anything else can only
+	 * be used by one thread, so a match on the prover searches on one thread (numThreads is kept
+	 * for the next match).
+	 */
+	private List<StateMachine> getThreadMachines() {
+		INHPropNetStateMachine propNetMachine = getPropNet();
+		int threads = (propNetMachine != null) ? this.numThreads : 1;
+		if (this.threadMachines == null || this.threadMachines.size() != threads) {
+			this.threadMachines = new ArrayList<StateMachine>();
+			for (int i = 0; i < threads; i++) {
+				this.threadMachines.add((propNetMachine != null) ? propNetMachine.duplicate() : getStateMachine());
+			}
+			this.trees = null;
+		}
+		return this.threadMachines;
+	}
+
+	/*
+	 * Runs MCTS from state until timeout on numThreads threads and returns the move whose
+	 * merged statistics are best. With root parallelism every thread grows its own tree; with
+	 * tree parallelism they all descend one shared tree. Each tree starts from what it already
+	 * knows about this state if it searched it last turn (or pondered it since).
+	 */
+	Move search(Role role, MachineState state, long timeout)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		stopPondering();
+		this.clock.start(timeout);
+		List<StateMachine> machines = prepareTrees(role, state);
+		if (this.mast != null) {
+			this.mast.decay(this.mastDecay);
+		}
+		System.out.println("Starting with " + this.trees.get(0).visits(this.trees.get(0).rootNode) + " visits on " + this.trees.size() + " tree(s)");
+		long startTime = System.currentTimeMillis();
+
+		long iterations = 0;
+		if (machines.size() == 1) {
+			iterations = this.trees.get(0).search();
+		} else {
+			iterations = awaitSearches(startSearches(machines));
+		}
+		if (this.trees.get(0).isSolved()) {
+			System.out.println("Solved!!!");
+		}
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		this.lastIterations = iterations;
+		this.lastMaxPathLength = 0;
+		long numNodes = 0;
+		for (int i = 0; i < this.trees.size(); i++) {
+			this.lastMaxPathLength = Math.max(this.lastMaxPathLength, this.trees.get(i).maxPathLength);
+			numNodes += this.trees.get(i).getNumNodes();
+		}
+		System.out.println("Iterations: " + iterations + " (" + (iterations * 1000 / elapsed) + "/s on " + machines.size() + " thread(s))"
+				+ ", deepest path: " + this.lastMaxPathLength + ", nodes: " + numNodes + " of " + this.maxNodes);
+		System.out.println(this.simulationController);
+		System.out.println(this.clock);
+		return chooseCurrBestMove(this.trees);
+	}
+
+	/* Roots a tree per thread (or one shared tree) at state, keeping what they know of it, and returns the thread machines */
+	private List<StateMachine> prepareTrees(Role role, MachineState state)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		List<StateMachine> machines = getThreadMachines();
+		startPlayoutEngines();
+		startPlayoutPool();
+		int numTrees = (this.treeParallel) ? 1 : machines.size();
+		if (this.trees == null || this.trees.size() != numTrees) {
+			this.trees = new ArrayList<MonteCarloTree>();
+			for (int i = 0; i < numTrees; i++) {
+				this.trees.add(null);
+			}
+		}
+		for (int i = 0; i < numTrees; i++) {
+			MonteCarloTree tree = this.trees.get(i);
+			if (tree == null || !tree.promote(state, this.reuseTurns)) {
+				this.trees.set(i, new MonteCarloTree(role, state, machines.get(i)));
+			}
+			this.trees.get(i).nodeBudget = this.maxNodes / numTrees;
+			this.trees.get(i).ponderMove = null;
+			this.trees.get(i).evictIfDue();  // Grown past the budget while the clock could not cover an eviction
+		}
+		return machines;
+	}
+
+	/* Starts one search per machine on the thread pool, spread over the trees; they run until the clock stops */
+	private List<Future<Long>> startSearches(List<StateMachine> machines) {
+		if (this.threadPool == null) {
+			this.threadPool = Executors.newFixedThreadPool(this.numThreads);
+		}
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (int i = 0; i < machines.size(); i++) {
+			final MonteCarloTree tree = this.trees.get(i % this.trees.size());
+			final StateMachine machine = machines.get(i);
+			futures.add(this.threadPool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return tree.search(machine);
+				}
+			}));
+		}
+		return futures;
+	}
+
+	/* Waits for the searches to stop and returns their total number of iterations */
+	private long awaitSearches(List<Future<Long>> futures) {
+		long iterations = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				iterations += futures.get(i).get();
+			} catch (ExecutionException e) {
+				// A failed tree still holds valid statistics from before the failure
+				e.getCause().printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return iterations;
+	}
+
+	/*
+	 * Keeps growing the trees from state in the background while the other players think. The
+	 * search threads run until stopPondering, which the next move request calls before the state
+	 * is advanced; the next search then starts from the subtree of whatever was actually played.
+	 * After our move (played, null in the start clock) only its subtree is searched, since the
+	 * others can no longer be reached.
+	 */
+	private void startPondering(Role role, MachineState state, Move played)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		if (!this.ponder || this.ponderSearches != null) {
+			return;
+		}
+		this.clock.start(System.currentTimeMillis() + PONDER_LIMIT);
+		List<StateMachine> machines = prepareTrees(role, state);
+		for (int i = 0; i < this.trees.size(); i++) {
+			this.trees.get(i).ponderMove = played;
+		}
+		this.ponderSearches = startSearches(machines);
+	}
+
+	@Override
+	protected void stopPondering() {
+		if (this.ponderSearches == null) {
+			return;
+		}
+		this.clock.stop();
+		long iterations = awaitSearches(this.ponderSearches);
+		this.ponderSearches = null;
+		System.out.println("Pondered " + iterations + " iterations");
+	}
+
+	/*
+	 * Sums the visits and utilities of each of our moves at the roots of all trees, and intersects
+	 * their score bounds (every tree's bounds hold). A move whose optimistic bound is below the best
+	 * pessimistic bound of any move is dominated and never chosen. The others are compared by their
+	 * average clamped into their bounds, which makes a proven score exact, and on a tie the one with
+	 * the better proven lower bound wins.
+	 */
+	private Move chooseCurrBestMove(List<MonteCarloTree> trees) {
+		Map<Move, double[]> totals = new LinkedHashMap<Move, double[]>();  // visits, utility, pessimistic, optimistic
+		for (int t = 0; t < trees.size(); t++) {
+			MonteCarloTree tree = trees.get(t);
+			Node rootNode = tree.rootNode;
+			boolean bounded = rootNode.decoupled == null;  // Not for one joint move
+			List<Node> children = tree.childList(rootNode);
+			for (int i = 0; i < children.size(); i++) {
+				Node childNode = children.get(i);
+				double[] total = totals.get(childNode.previousPlayerMove);
+				if (total == null) {
+					total = new double[] {0, 0, MIN_GOAL, MAX_GOAL};
+					totals.put(childNode.previousPlayerMove, total);
+				}
+				total[0] += tree.visits(childNode);
+				total[1] += tree.utility(childNode);
+				if (bounded && tree.visits(childNode) > 0) {
+					total[2] = Math.max(total[2], childNode.pessimistic);
+					total[3] = Math.min(total[3], childNode.optimistic);
+				}
+			}
+		}
+
+		double bestPessimistic = MIN_GOAL;
+		for (double[] total : totals.values()) {
+			if (total[0] > 0) {
+				bestPessimistic = Math.max(bestPessimistic, total[2]);
+			}
+		}
+		double bestScore = -1;
+		double bestMoveBound = -1;
+		Move bestMove = null;
+		for (Map.Entry<Move, double[]> entry : totals.entrySet()) {
+			double[] total = entry.getValue();
+			if (total[0] > 0 && total[3] >= bestPessimistic) {
+				double score = Math.min(Math.max(total[1] / total[0], total[2]), total[3]);
+				if (score > bestScore || (score == bestScore && total[2] > bestMoveBound)) {
+					bestScore = score;
+					bestMoveBound = total[2];
+					bestMove = entry.getKey();
+				}
+			}
+		}
+		return bestMove;
 	}
 
 	/**
@@ -312,26 +1743,76 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 	}
 
 	/**
-	 * Currently, we can get along just fine by using the Prover State Machine.
-	 * We will implement a more optimized PropNet State Machine later. The Cached
-	 * State Machine is a wrapper that reduces the number of calls to the Prover
-	 * State Machine by returning results of method calls that have been made previously.
+	 * We use our PropNet State Machine, which compiles the rules passed to initialize
+	 * into a propositional network and answers queries with a forward pass instead of
+	 * proving them (or with the prover, if the PropNet cannot be built). The Cached
+	 * State Machine is a wrapper that reduces the number of calls to the machine by
+	 * returning results of method calls that have been made previously.
 	 * (e.g. getNextState calls or getLegalMoves for the same combination of parameters)
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		this.checkedMachine = new INHCheckedStateMachine();
+		return new CachedStateMachine(this.checkedMachine);
 	}
 
 	/**
-	 * If we wanted to use the metagame (or start) clock to compute something
-	 * about the game (or explore the game tree), we could do so here. Since
-	 * this is just a legal player, there is no need for such computation.
+	 * Uses the start clock as a metagame: checks the PropNet against the prover
+	 * (falling back to the prover if they disagree), measures the game with a burst
+	 * of playouts, which also warms up the JIT, and then grows the trees from the
+	 * initial state so that the first play inherits them. The trees are grown by
+	 * pondering when it is on, which keeps going until the first move request.
 	 */
 	@Override
 	public void start(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		cleanup();
+		Role role = getRole();
+		MachineState state = getCurrentState();
+		long available = timeout - System.currentTimeMillis() - this.clock.getMargin() / 1000000;
+		if (!this.checkedMachine.verify(System.currentTimeMillis() + available)) {
+			switchStateMachine(new CachedStateMachine(this.checkedMachine));
+			state = getCurrentState();
+		} else if (getPropNet() != null) {
+			calibrate(role, state, System.currentTimeMillis() + available * CALIBRATE_SHARE / 100);
+		}
+		if (this.ponder) {
+			startPondering(role, state, null);
+		} else if (!findTerminalp(state, getStateMachine())) {
+			search(role, state, timeout);
+		}
+	}
 
+	/*
+	 * Runs playouts from state until the deadline and prints how long and how wide the game is.
+	 * The mean playout seeds the simulation controller, and the longest playout times the playouts
+	 * per leaf seeds the clock's worst iteration, so the first move already stops in time.
+	 */
+	private void calibrate(Role role, MachineState state, long deadline)
+			throws MoveDefinitionException, GoalDefinitionException {
+		if (getPropNet().isTerminal(state)) {
+			return;
+		}
+		INHPlayoutEngine engine = new INHPlayoutEngine(getPropNet().duplicate(), new SplittableRandom());
+		int numRoles = getPropNet().getRoles().size();
+		long startTime = System.nanoTime();
+		long longest = 0;
+		long playouts = 0;
+		while (System.currentTimeMillis() < deadline) {
+			long playoutStart = System.nanoTime();
+			engine.playout(state, role);
+			longest = Math.max(longest, System.nanoTime() - playoutStart);
+			playouts++;
+		}
+		if (playouts == 0) {
+			return;
+		}
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+		double steps = Math.max(1, engine.getTotalSteps());
+		this.simulationController.seed(elapsed / playouts, steps / playouts);
+		this.clock.recordIteration(longest * this.simulationController.getSimulations());
+		System.out.println(String.format("Calibration: %d playouts (%d/s), %.1f joint moves per game, %.1f legal moves per role",
+				playouts, playouts * 1000000000L / elapsed, steps / playouts, engine.getTotalChoices() / (steps * numRoles)));
 	}
 
 	/**
@@ -367,32 +1848,17 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 		List<Move> legalMoves = findLegals(role, state, machine);
 		if (legalMoves.size() == 1) {
 			System.out.println("I am playing: " + legalMoves.get(0));
+			startPondering(role, state, legalMoves.get(0));  // Our only move is instant; think about the opponents' instead
 			return legalMoves.get(0);
 		}
 
 		//Begin MCTS
-		MonteCarloTree tree = new MonteCarloTree(role, state, machine);
-		this.currTimeout = timeout;
-
-		while (doWeHaveTime()) {
-			if (tree.isSolved()) {
-				System.out.println("Solved!!!");
-				break;
-			}
-			Node selectedNode = tree.select();
-			if (selectedNode == null) {
-				break;
-			}
-			tree.expand(selectedNode);
-			double score = tree.simulate(selectedNode, this.numSimulations);
-			tree.backpropagate(selectedNode, score, false);
-		}
-		Move bestMove = tree.chooseCurrBestMove();
+		Move bestMove = search(role, state, timeout);
 		if (bestMove == null) {
 			bestMove = legalMoves.get(0);
 		}
 		/*
-		if (!tree.verifyTree()) {
+		if (!this.trees.get(0).verifyTree()) {
 			System.out.println("Tree is malformed!");
 		} else {
 			System.out.println("Tree look good!");
@@ -401,6 +1867,8 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 
 
 		System.out.println("I am playing: " + bestMove);
+		this.clock.finish();
+		startPondering(role, state, bestMove);
 		return bestMove;
 	}
 
@@ -409,7 +1877,7 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 	 */
 	@Override
 	public void stop() {
-
+		cleanup();
 	}
 
 	/**
@@ -418,7 +1886,68 @@ public class INHMonteCarloTreeSearchImprovedPlayer extends GGPlayer {
 	 */
 	@Override
 	public void abort() {
+		cleanup();
+	}
+
+	private INHSimulationController newSimulationController() {
+		return new INHSimulationController(this.numSimulations, 1, 64);
+	}
 
+	private void cleanup() {
+		stopPondering();
+		this.simulationController = newSimulationController();
+		this.trees = null;
+		this.threadMachines = null;
+		if (this.threadPool != null) {
+			this.threadPool.shutdownNow();
+			this.threadPool = null;
+		}
+		if (this.playoutPool != null) {
+			this.playoutPool.shutdownNow();
+			this.playoutPool = null;
+		}
+		this.playoutEngines = null;
+		this.mast = null;
+	}
+
+	/* Leaf parallelism needs a PropNet to give every playout thread its own machine */
+	private void startPlayoutPool() {
+		if (this.leafThreads <= 1 || getPropNet() == null || this.playoutPool != null) {
+			return;
+		}
+		this.playoutPool = Executors.newFixedThreadPool(this.leafThreads);
+	}
+
+	/* AMAF needs the playout engines to record the moves; without a PropNet selection is plain UCT */
+	private AmafRecord newAmafRecord(Role role) {
+		if (this.playoutEngines == null) {
+			return null;
+		}
+		return new AmafRecord(getPropNet().getNumMoves(getPropNet().getRoleIndex(role)));
+	}
+
+	/* Every thread that runs playouts makes its engine the first time, with its own split of the seed generator */
+	private void startPlayoutEngines() {
+		if (getPropNet() == null || this.playoutEngines != null) {
+			return;
+		}
+		final INHPropNetStateMachine propNetMachine = getPropNet();
+		final SplittableRandom seeds = this.seeds;
+		final INHMastTable mast = new INHMastTable(propNetMachine);
+		final double mastEpsilon = this.mastEpsilon;
+		this.mast = mast;
+		this.playoutEngines = new ThreadLocal<INHPlayoutEngine>() {
+			@Override
+			protected INHPlayoutEngine initialValue() {
+				SplittableRandom random;
+				synchronized (seeds) {
+					random = seeds.split();
+				}
+				INHPlayoutEngine engine = new INHPlayoutEngine(propNetMachine.duplicate(), random);
+				engine.setMast(mast, mastEpsilon);
+				return engine;
+			}
+		};
 	}
 
 	/**
@@ -1,5 +1,9 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
 
 import org.ggp.base.apps.player.Player;
 import org.ggp.base.util.statemachine.MachineState;
@@ -10,7 +14,6 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
  * Insert_Team_Name
@@ -20,100 +23,194 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  */
 public class INHMonteCarloTreeSearchPlayer extends GGPlayer {
 
-	class Node {
-		public Role playerRole;  // Our role (not the role of the player who's going next)
-		public Move previousPlayerMove;  // Move made by our player previously
-
-		public boolean expanded = false;  // Meant for checking whether we should expand on node
-		public double utility = 0;
-		public int visits = 0;
-
-		public Node parent;
-		public List<Node> children;
-
-		// Information about the game
-		public MachineState state;
-		public StateMachine machine;
-
-
-		public Node(Node parent, Role playerRole, Move previousPlayerMove, MachineState state, StateMachine machine) {
-			this.playerRole = playerRole;
-			this.previousPlayerMove = previousPlayerMove;
-
-			this.parent = parent;
-			this.children = new ArrayList<Node>();
-
-			this.state = state;
-			this.machine = machine;
-		}
-	}
-
-	private long TIME_LIMIT = 3000;
-	private long currTimeout = 0;
-	private int numSimulations = 10;
-
-	private boolean doWeHaveTime() {
-		return (currTimeout - System.currentTimeMillis()) > TIME_LIMIT;
-	}
-
-	private void expand(Node node) throws MoveDefinitionException, TransitionDefinitionException {
-		if (node.expanded) {
+	/*
+	 * The tree lives in a node pool (parallel primitive arrays indexed by node id) that is
+	 * reset before every move, so a big tree is not millions of objects for the GC to trace.
+	 */
+	private INHNodePool pool = new INHNodePool();
+	private Role playerRole;  // Our role (not the role of the player who's going next)
+	private StateMachine machine;
+	private INHCheckedStateMachine checkedMachine;  // The PropNet, or the prover if it could not be built
+	private INHPlayoutEngine playoutEngine;  // Runs the playouts on its own copy of the PropNet
+	private INHMastTable mast;  // Playout policy (MAST), aged every turn so it follows the game
+	private double mastEpsilon = 0.4;
+	private double mastDecay = 0.5;
+
+	private INHClock clock = new INHClock();
+	private int numSimulations = 10;  // Playouts per leaf until the controller has measured some
+	private INHSimulationController simulationController;
+
+	// Nodes by state, so a state reached by several move orders is searched once (only at equal depths, to stay acyclic)
+	private Map<MachineState, Integer> transpositions = new HashMap<MachineState, Integer>();
+
+	// Memory governor: once the pool holds this many nodes the least visited subtrees are collapsed
+	private int maxNodes = INHMemoryBudget.maxNodes();
+	private static final int EVICT_TO = 75;  // Percent of maxNodes to cut the pool back to
+	private int nextEviction;  // Pool size that triggers the next eviction (maxNodes, or more if one fell short)
+
+	// Nodes on the path of the current iteration, root first
+	private int[] path = new int[64];
+	private int pathLength = 0;
+	private int[] pathEdges = new int[64];  // The edge into each node of the path, NONE for the root
+
+	private void expand(int node) throws MoveDefinitionException, TransitionDefinitionException {
+		if (pool.hasFlag(node, INHNodePool.EXPANDED)) {
 			return;
 		}
-		List<Move> legalMoves = findLegals(node.playerRole, node.state, node.machine);
+		MachineState state = pool.getState(node);
+		List<Move> legalMoves = findLegals(this.playerRole, state, this.machine);
+		List<List<List<Move>>> jointMoves = new ArrayList<List<List<Move>>>();
+		int numChildren = 0;
+		for (int i = 0; i < legalMoves.size(); i++) {
+			jointMoves.add(findLegalJoints(this.playerRole, legalMoves.get(i), state, this.machine));
+			numChildren += jointMoves.get(i).size();
+		}
+		pool.reserveChildren(node, numChildren);
 		for (int i = 0; i < legalMoves.size(); i++) {
-			List<List<Move>> possibleJointMoves = findLegalJoints(node.playerRole, legalMoves.get(i), node.state, node.machine);
+			List<List<Move>> possibleJointMoves = jointMoves.get(i);
 			for (int j = 0; j < possibleJointMoves.size(); j++) {
-				node.children.add(new Node(node, node.playerRole, legalMoves.get(i), findNext(possibleJointMoves.get(j), node.state, node.machine), node.machine));
+				MachineState nextState = findNext(possibleJointMoves.get(j), state, this.machine);
+				int childNode = getOrCreateNode(node, legalMoves.get(i), nextState);
+				if (!pool.hasChild(node, childNode)) {  // Several joint moves can lead to the same state
+					pool.addChild(node, childNode);
+				}
 			}
 		}
-		node.expanded = true;
+		pool.setFlag(node, INHNodePool.EXPANDED);
 	}
 
-	private double selectFn(Node node) {
-		return node.utility / node.visits + Math.sqrt(2 * Math.log(node.parent.visits) / node.visits);
+	/* The root's children stay separate, since each one stands for one of our moves */
+	private int getOrCreateNode(int parent, Move playerMove, MachineState state) {
+		int depth = pool.getDepth(parent) + 1;
+		Integer existing = this.transpositions.get(state);
+		if (depth > 1 && existing != null && pool.getDepth(existing) == depth) {
+			return existing;
+		}
+		int node = allocate(state, playerMove, depth);
+		if (existing == null) {
+			this.transpositions.put(state, node);
+		}
+		return node;
 	}
 
-	private Node select(Node node) throws MoveDefinitionException, TransitionDefinitionException {
-		if (node == null || findTerminalp(node.state, node.machine)) {
-			return null;
+	/* Terminality is worked out once here, so selection only has to read a flag */
+	private int allocate(MachineState state, Move playerMove, int depth) {
+		int node = pool.allocate(state, playerMove, depth);
+		if (findTerminalp(state, this.machine)) {
+			pool.setFlag(node, INHNodePool.TERMINAL);
 		}
-		if (node.visits == 0) {
-			return node;
+		return node;
+	}
+
+	private void addToPath(int node, int edge) {
+		if (this.pathLength == this.path.length) {
+			this.path = Arrays.copyOf(this.path, this.path.length * 2);
+			this.pathEdges = Arrays.copyOf(this.pathEdges, this.path.length);
 		}
-		for (int i = 0; i < node.children.size(); i++) {
-			Node childNode = node.children.get(i);
-			if (childNode.visits == 0 && !findTerminalp(childNode.state, childNode.machine)) {
-				return childNode;
+		this.path[this.pathLength] = node;
+		this.pathEdges[this.pathLength] = edge;
+		this.pathLength++;
+	}
+
+	/*
+	 * Adds the nodes it descends through to the path, since a transposed node has several
+	 * parents. Descends in a loop rather than recursing, so deep games cannot overflow the stack.
+	 * Children are scored from the statistics of their edges, which lie side by side in the pool.
+	 */
+	private int select(int node) throws MoveDefinitionException, TransitionDefinitionException {
+		int edge = INHNodePool.NONE;
+		while (true) {
+			if (node == INHNodePool.NONE || pool.hasFlag(node, INHNodePool.TERMINAL)) {
+				return INHNodePool.NONE;
+			}
+			addToPath(node, edge);
+			if (pool.getVisits(node) == 0 || !pool.hasFlag(node, INHNodePool.EXPANDED)) {  // New, or collapsed
+				return node;
+			}
+			int first = pool.getFirstEdge(node);
+			int end = first + pool.getChildCount(node);
+			int[] visits = pool.getEdgeVisits();
+			double[] utilities = pool.getEdgeUtilities();
+			for (int e = first; e < end; e++) {
+				if (visits[e] == 0 && utilities[e] != Double.NEGATIVE_INFINITY) {  // Unvisited and not terminal
+					addToPath(pool.getEdgeChild(e), e);
+					return pool.getEdgeChild(e);
+				}
 			}
+			edge = INHUcb.best(utilities, visits, first, end - first, 1.0, INHUcb.explorationScale(pool.getVisits(node)));
+			node = (edge < 0) ? INHNodePool.NONE : pool.getEdgeChild(edge);
 		}
-		double score = -1;
-		Node result = null;
-		for (int i = 0; i < node.children.size(); i++) {
-			Node childNode = node.children.get(i);
-			double newScore = selectFn(childNode);
-			if (newScore > score && !findTerminalp(childNode.state, childNode.machine)) {
-				score = newScore;
-				result = childNode;
+	}
+
+	/* Backs the score up along the path it was selected through */
+	private void backpropagate(double score) {
+		for (int i = this.pathLength - 1; i >= 0; i--) {
+			pool.update(this.path[i], score);
+			if (this.pathEdges[i] != INHNodePool.NONE) {
+				pool.updateEdge(this.pathEdges[i], score);
 			}
+		}
+	}
 
+	/*
+	 * Collapses the least visited expanded nodes until their children alone would bring the pool
+	 * under EVICT_TO percent of maxNodes, then compacts it, which also recycles everything below
+	 * them. A collapsed node keeps its statistics (they already include its subtree) and is
+	 * expanded again if selected. Children shared with a node that is kept survive the compaction,
+	 * so the pass is repeated while the pool is over the target and still shrinking. If it stops
+	 * short, the next eviction waits until the pool has grown by the usual headroom again, instead
+	 * of running on every iteration. Returns the root's new id.
+	 */
+	private int evict(int rootNode) {
+		long target = (long) this.maxNodes * EVICT_TO / 100;
+		while (pool.size() > target) {
+			int size = pool.size();
+			long[] candidates = new long[size];  // Visits in the high half, so sorting orders them by visits
+			int numCandidates = 0;
+			for (int node = 0; node < size; node++) {
+				if (node != rootNode && pool.hasFlag(node, INHNodePool.EXPANDED) && pool.getChildCount(node) > 0) {
+					candidates[numCandidates++] = ((long) pool.getVisits(node) << 32) | node;
+				}
+			}
+			Arrays.sort(candidates, 0, numCandidates);
+			long excess = size - target;
+			for (int i = 0; i < numCandidates && excess > 0; i++) {
+				int node = (int) candidates[i];
+				excess -= pool.getChildCount(node);
+				pool.collapse(node);
+			}
+			rootNode = compact(rootNode);
+			if (pool.size() >= size) {  // Nothing left that frees anything
+				break;
+			}
 		}
-		return select(result);
+		this.nextEviction = (int) Math.min(Integer.MAX_VALUE, Math.max(this.maxNodes, pool.size() + this.maxNodes - target));
+		return rootNode;
 	}
 
-	private void backpropagate(Node node, double score) {
-		node.visits++;
-		node.utility += score;
-		if (node.parent != null) {
-			backpropagate(node.parent, score);
+	/* Compacts the pool and renumbers the transpositions; returns the root's new id */
+	private int compact(int rootNode) {
+		int[] remap = pool.compact(rootNode);
+		Map<MachineState, Integer> transpositions = new HashMap<MachineState, Integer>();
+		for (Map.Entry<MachineState, Integer> entry : this.transpositions.entrySet()) {
+			int node = remap[entry.getValue()];
+			if (node != INHNodePool.NONE) {
+				transpositions.put(entry.getKey(), node);
+			}
 		}
+		this.transpositions = transpositions;
+		return remap[rootNode];
 	}
 
-	private double simulate(Node node, int count)
+	private double simulate(int node, int count)
 			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
 		double total = 0;
 		for (int i = 0; i < count; i++) {
-			total = total + depthCharge(node.playerRole, node.state, node.machine);
+			if (this.playoutEngine != null) {
+				total = total + this.playoutEngine.playout(pool.getState(node), this.playerRole);
+			} else {
+				total = total + depthCharge(this.playerRole, pool.getState(node), this.machine);
+			}
 		}
 		return total / count;
 	}
@@ -134,26 +231,32 @@ public class INHMonteCarloTreeSearchPlayer extends GGPlayer {
 	}
 
 	/**
-	 * Currently, we can get along just fine by using the Prover State Machine.
-	 * We will implement a more optimized PropNet State Machine later. The Cached
-	 * State Machine is a wrapper that reduces the number of calls to the Prover
-	 * State Machine by returning results of method calls that have been made previously.
+	 * We use our PropNet State Machine, which compiles the rules passed to initialize
+	 * into a propositional network and answers queries with a forward pass instead of
+	 * proving them (or with the prover, if the PropNet cannot be built). The Cached
+	 * State Machine is a wrapper that reduces the number of calls to the machine by
+	 * returning results of method calls that have been made previously.
 	 * (e.g. getNextState calls or getLegalMoves for the same combination of parameters)
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		this.checkedMachine = new INHCheckedStateMachine();
+		this.playoutEngine = null;
+		this.mast = null;
+		this.simulationController = new INHSimulationController(this.numSimulations, 1, 64);
+		return new CachedStateMachine(this.checkedMachine);
 	}
 
 	/**
-	 * If we wanted to use the metagame (or start) clock to compute something
-	 * about the game (or explore the game tree), we could do so here. Since
-	 * this is just a legal player, there is no need for such computation.
+	 * Uses the start clock to check our PropNet against the prover on random
+	 * games, and switches to the prover if the two disagree on anything.
 	 */
 	@Override
 	public void start(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
-
+		if (!this.checkedMachine.verify(timeout)) {
+			switchStateMachine(new CachedStateMachine(this.checkedMachine));
+		}
 	}
 
 	/**
@@ -193,34 +296,71 @@ public class INHMonteCarloTreeSearchPlayer extends GGPlayer {
 		}
 
 		//Begin MCTS
-		Node rootNode = new Node(null, role, null, state, machine);
-		this.currTimeout = timeout;
-		while (doWeHaveTime()) {
-			Node selectedNode = select(rootNode);
-			if (selectedNode == null) {
+		this.clock.start(timeout);
+		this.playerRole = role;
+		this.machine = machine;
+		INHPropNetStateMachine propNetMachine = this.checkedMachine.getPropNet();
+		if (this.playoutEngine == null && propNetMachine != null) {
+			this.playoutEngine = new INHPlayoutEngine(propNetMachine.duplicate(), new SplittableRandom());
+			this.mast = new INHMastTable(propNetMachine);
+			this.playoutEngine.setMast(this.mast, this.mastEpsilon);
+		}
+		if (this.mast != null) {
+			this.mast.decay(this.mastDecay);
+		}
+		pool.reset();
+		this.transpositions.clear();
+		int rootNode = allocate(state, null, 0);
+		this.nextEviction = this.maxNodes;
+		if (this.simulationController == null) {
+			this.simulationController = new INHSimulationController(this.numSimulations, 1, 64);
+		}
+		long evicted = 0;
+		while (this.clock.hasTime()) {
+			long startTime = System.nanoTime();
+			this.pathLength = 0;
+			int selectedNode = select(rootNode);
+			if (selectedNode == INHNodePool.NONE) {
 				break;
 			}
 			expand(selectedNode);
-			double score = simulate(selectedNode, this.numSimulations);
-			backpropagate(selectedNode, score);
+			long playoutStart = System.nanoTime();
+			long stepsBefore = (this.playoutEngine != null) ? this.playoutEngine.getTotalSteps() : 0;
+			int count = this.simulationController.getSimulations();
+			double score = simulate(selectedNode, count);
+			long playoutEnd = System.nanoTime();
+			backpropagate(score);
+			if (pool.size() >= this.nextEviction) {
+				int size = pool.size();
+				rootNode = evict(rootNode);
+				evicted += size - pool.size();
+			}
+			long steps = (this.playoutEngine != null) ? this.playoutEngine.getTotalSteps() - stepsBefore : -1;
+			this.simulationController.record(System.nanoTime() - startTime - (playoutEnd - playoutStart), playoutEnd - playoutStart, count, steps);
+			this.clock.recordIteration(System.nanoTime() - startTime);
 		}
+		this.transpositions.clear();
+		System.out.println("Nodes in tree: " + pool.size() + ", evicted: " + evicted);
+		System.out.println(this.simulationController);
+		System.out.println(this.clock);
 		Move bestMove = findLegals(role, state, machine).get(0);
 		double bestScore = 0.0;
-		for (int i = 0; i < rootNode.children.size(); i++) {
-			Node childNode = rootNode.children.get(i);
-			if (childNode.visits > 0) {
-				double score = childNode.utility / childNode.visits;
-				System.out.println("Utility considered: " + childNode.utility);
-				System.out.println("Visits: " + childNode.visits);
+		for (int i = 0; i < pool.getChildCount(rootNode); i++) {
+			int childNode = pool.getChild(rootNode, i);
+			if (pool.getVisits(childNode) > 0) {
+				double score = pool.getUtility(childNode) / pool.getVisits(childNode);
+				System.out.println("Utility considered: " + pool.getUtility(childNode));
+				System.out.println("Visits: " + pool.getVisits(childNode));
 				System.out.println("Scaled utility considered: " + score);
 				if (score > bestScore) {
 					bestScore = score;
-					bestMove = childNode.previousPlayerMove;
+					bestMove = pool.getMove(childNode);
 				}
 			}
 		}
 
 		System.out.println("I am playing: " + bestMove);
+		this.clock.finish();
 		return bestMove;
 	}
 
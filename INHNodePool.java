@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * Insert_Team_Name
+ * Node Pool
+ * Stores MCTS nodes as parallel primitive arrays instead of one object per node.
+ * A node is an int id; its fields live in fixed-size chunks that are allocated
+ * once and kept across reset calls, so building and walking a tree allocates
+ * nothing once the pool has grown to the size of the largest tree.
+ *
+ * Children are stored as a run of node ids in a shared edge array (first child
+ * index and child count), so a node can be the child of several parents. Each
+ * edge also carries its own visits and total utility, in arrays parallel to the
+ * edges, so the statistics of a node's children are contiguous and selection can
+ * hand them to INHUcb.best as they are. An edge starts from its child's
+ * statistics when it is added; from then on it counts the visits through that
+ * parent only. A terminal child's edge has a utility of minus infinity, so it is
+ * never selected.
+ *
+ * To stay within a memory budget, nodes can be collapsed (their children dropped)
+ * and the pool compacted, which recycles every node no longer reachable.
+ *
+ * Not thread-safe: the single-threaded basic MCTS player builds its tree in it. The
+ * improved player's trees, which several threads grow at once, use INHSharedNodePool.
+ */
+public class INHNodePool {
+
+	public static final int NONE = -1;
+
+	// Flags
+	public static final byte EXPANDED = 1;
+	public static final byte TERMINAL = 2;
+	public static final byte SOLVED = 4;
+
+	private static final int CHUNK_SHIFT = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final List<int[]> visits = new ArrayList<int[]>();
+	private final List<double[]> utility = new ArrayList<double[]>();
+	private final List<double[]> score = new ArrayList<double[]>();
+	private final List<byte[]> flags = new ArrayList<byte[]>();
+	private final List<int[]> firstChild = new ArrayList<int[]>();
+	private final List<int[]> childCount = new ArrayList<int[]>();
+	private final List<int[]> depth = new ArrayList<int[]>();
+	private final List<MachineState[]> state = new ArrayList<MachineState[]>();
+	private final List<Move[]> move = new ArrayList<Move[]>();
+
+	private int size = 0;
+
+	private int[] edges = new int[CHUNK_SIZE];
+	private int numEdges = 0;
+	private int[] edgeVisits = new int[CHUNK_SIZE];
+	private double[] edgeUtility = new double[CHUNK_SIZE];
+	private int[] spareEdges = new int[0];  // Swapped with edges by compact, so it is only allocated once
+	private int[] spareEdgeVisits = new int[0];
+	private double[] spareEdgeUtility = new double[0];
+
+	/* Forgets every node but keeps the chunks for the next tree */
+	public void reset() {
+		for (int c = 0; c * CHUNK_SIZE < this.size; c++) {
+			int used = Math.min(CHUNK_SIZE, this.size - c * CHUNK_SIZE);
+			Arrays.fill(this.state.get(c), 0, used, null);  // Let the states be collected
+			Arrays.fill(this.move.get(c), 0, used, null);
+		}
+		this.size = 0;
+		this.numEdges = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/* Returns the id of a fresh node with no statistics and no children */
+	public int allocate(MachineState nodeState, Move nodeMove, int nodeDepth) {
+		int id = this.size;
+		int c = id >>> CHUNK_SHIFT;
+		if (c == this.visits.size()) {
+			this.visits.add(new int[CHUNK_SIZE]);
+			this.utility.add(new double[CHUNK_SIZE]);
+			this.score.add(new double[CHUNK_SIZE]);
+			this.flags.add(new byte[CHUNK_SIZE]);
+			this.firstChild.add(new int[CHUNK_SIZE]);
+			this.childCount.add(new int[CHUNK_SIZE]);
+			this.depth.add(new int[CHUNK_SIZE]);
+			this.state.add(new MachineState[CHUNK_SIZE]);
+			this.move.add(new Move[CHUNK_SIZE]);
+		}
+		int i = id & CHUNK_MASK;
+		this.visits.get(c)[i] = 0;
+		this.utility.get(c)[i] = 0;
+		this.score.get(c)[i] = 0;
+		this.flags.get(c)[i] = 0;
+		this.firstChild.get(c)[i] = 0;
+		this.childCount.get(c)[i] = 0;
+		this.depth.get(c)[i] = nodeDepth;
+		this.state.get(c)[i] = nodeState;
+		this.move.get(c)[i] = nodeMove;
+		this.size++;
+		return id;
+	}
+
+	/* Gives node room for at most maxChildren children, to be filled with addChild */
+	public void reserveChildren(int node, int maxChildren) {
+		if (this.numEdges + maxChildren > this.edges.length) {
+			int length = Math.max(this.edges.length * 2, this.numEdges + maxChildren);
+			this.edges = Arrays.copyOf(this.edges, length);
+			this.edgeVisits = Arrays.copyOf(this.edgeVisits, length);
+			this.edgeUtility = Arrays.copyOf(this.edgeUtility, length);
+		}
+		this.firstChild.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = this.numEdges;
+		this.childCount.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = 0;
+		this.numEdges += maxChildren;
+	}
+
+	/* Only valid for the node children were last reserved for; the child's TERMINAL flag must already be set */
+	public void addChild(int node, int child) {
+		int c = node >>> CHUNK_SHIFT;
+		int i = node & CHUNK_MASK;
+		int edge = this.firstChild.get(c)[i] + this.childCount.get(c)[i];
+		this.edges[edge] = child;
+		this.edgeVisits[edge] = getVisits(child);
+		this.edgeUtility[edge] = hasFlag(child, TERMINAL) ? Double.NEGATIVE_INFINITY : getUtility(child);
+		this.childCount.get(c)[i]++;
+	}
+
+	public boolean hasChild(int node, int child) {
+		int count = getChildCount(node);
+		int first = this.firstChild.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+		for (int k = 0; k < count; k++) {
+			if (this.edges[first + k] == child) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getChildCount(int node) {
+		return this.childCount.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	/* Index of the first child's edge; the node's edges are the getChildCount(node) that follow */
+	public int getFirstEdge(int node) {
+		return this.firstChild.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	public int getEdgeChild(int edge) {
+		return this.edges[edge];
+	}
+
+	/* The visits of every edge, by edge index; valid until the next reserveChildren or compact */
+	public int[] getEdgeVisits() {
+		return this.edgeVisits;
+	}
+
+	/* The total utilities of every edge, by edge index; valid until the next reserveChildren or compact */
+	public double[] getEdgeUtilities() {
+		return this.edgeUtility;
+	}
+
+	/* One visit through edge with the given score */
+	public void updateEdge(int edge, double value) {
+		this.edgeVisits[edge]++;
+		this.edgeUtility[edge] += value;
+	}
+
+	public int getChild(int node, int k) {
+		return this.edges[this.firstChild.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] + k];
+	}
+
+	public int getVisits(int node) {
+		return this.visits.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	public double getUtility(int node) {
+		return this.utility.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	/* One visit with the given score */
+	public void update(int node, double value) {
+		this.visits.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK]++;
+		this.utility.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] += value;
+	}
+
+	public double getScore(int node) {
+		return this.score.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	public void setScore(int node, double value) {
+		this.score.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = value;
+	}
+
+	public boolean hasFlag(int node, byte flag) {
+		return (this.flags.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] & flag) != 0;
+	}
+
+	public void setFlag(int node, byte flag) {
+		this.flags.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] |= flag;
+	}
+
+	public void clearFlag(int node, byte flag) {
+		this.flags.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] &= ~flag;
+	}
+
+	public int getDepth(int node) {
+		return this.depth.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	public MachineState getState(int node) {
+		return this.state.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	public Move getMove(int node) {
+		return this.move.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK];
+	}
+
+	/* Drops the children of node, which becomes an unexpanded leaf with its statistics intact */
+	public void collapse(int node) {
+		this.childCount.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = 0;
+		clearFlag(node, EXPANDED);
+	}
+
+	/*
+	 * Recycles every node that can no longer be reached from root. The survivors move down to
+	 * the lowest ids in their old order (so a node never overwrites one not yet moved) and the
+	 * edges are rewritten without gaps. Returns the new id of each old node, NONE if dropped.
+	 */
+	public int[] compact(int root) {
+		int oldSize = this.size;
+		int[] remap = new int[oldSize];
+		Arrays.fill(remap, NONE);
+		int[] stack = new int[oldSize];  // Every node is pushed at most once
+		int top = 0;
+		remap[root] = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			int count = getChildCount(node);
+			for (int k = 0; k < count; k++) {
+				int child = getChild(node, k);
+				if (remap[child] == NONE) {
+					remap[child] = 0;
+					stack[top++] = child;
+				}
+			}
+		}
+
+		int newSize = 0;
+		for (int node = 0; node < oldSize; node++) {
+			if (remap[node] != NONE) {
+				remap[node] = newSize;
+				move(node, newSize);
+				newSize++;
+			}
+		}
+
+		if (this.spareEdges.length < this.edges.length) {
+			this.spareEdges = new int[this.edges.length];
+			this.spareEdgeVisits = new int[this.edges.length];
+			this.spareEdgeUtility = new double[this.edges.length];
+		}
+		int[] newEdges = this.spareEdges;
+		int[] newEdgeVisits = this.spareEdgeVisits;
+		double[] newEdgeUtility = this.spareEdgeUtility;
+		int newNumEdges = 0;
+		for (int node = 0; node < newSize; node++) {
+			int c = node >>> CHUNK_SHIFT;
+			int i = node & CHUNK_MASK;
+			int first = this.firstChild.get(c)[i];
+			int count = this.childCount.get(c)[i];
+			this.firstChild.get(c)[i] = newNumEdges;
+			for (int k = 0; k < count; k++) {
+				newEdges[newNumEdges] = remap[this.edges[first + k]];
+				newEdgeVisits[newNumEdges] = this.edgeVisits[first + k];
+				newEdgeUtility[newNumEdges] = this.edgeUtility[first + k];
+				newNumEdges++;
+			}
+		}
+		this.spareEdges = this.edges;
+		this.spareEdgeVisits = this.edgeVisits;
+		this.spareEdgeUtility = this.edgeUtility;
+		this.edges = newEdges;
+		this.edgeVisits = newEdgeVisits;
+		this.edgeUtility = newEdgeUtility;
+		this.numEdges = newNumEdges;
+
+		for (int node = newSize; node < oldSize; node++) {  // Let the states be collected
+			this.state.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = null;
+			this.move.get(node >>> CHUNK_SHIFT)[node & CHUNK_MASK] = null;
+		}
+		this.size = newSize;
+		return remap;
+	}
+
+	private void move(int from, int to) {
+		if (from == to) {
+			return;
+		}
+		int fc = from >>> CHUNK_SHIFT;
+		int fi = from & CHUNK_MASK;
+		int tc = to >>> CHUNK_SHIFT;
+		int ti = to & CHUNK_MASK;
+		this.visits.get(tc)[ti] = this.visits.get(fc)[fi];
+		this.utility.get(tc)[ti] = this.utility.get(fc)[fi];
+		this.score.get(tc)[ti] = this.score.get(fc)[fi];
+		this.flags.get(tc)[ti] = this.flags.get(fc)[fi];
+		this.firstChild.get(tc)[ti] = this.firstChild.get(fc)[fi];
+		this.childCount.get(tc)[ti] = this.childCount.get(fc)[fi];
+		this.depth.get(tc)[ti] = this.depth.get(fc)[fi];
+		this.state.get(tc)[ti] = this.state.get(fc)[fi];
+		this.move.get(tc)[ti] = this.move.get(fc)[fi];
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * Insert_Team_Name
+ * Playout Engine
+ * Runs random playouts (depth charges) on a PropNet without allocating anything
+ * per step: moves are int indices into the machine's legal propositions, the
+ * legal and joint move buffers are reused, and the state is advanced in place
+ * in the machine's scratch values instead of as a new MachineState.
+ * The joint moves and the goals of every role of the last playout are kept
+ * (for AMAF and for N-player search).
+ *
+ * With a MAST table the moves are chosen epsilon-greedily: the move with the best
+ * average so far, or a uniformly random one with probability epsilon.
+ *
+ * An engine owns its machine and its random generator, so it must only be used
+ * by one thread at a time; give every thread its own.
+ */
+public class INHPlayoutEngine {
+
+	private final INHPropNetStateMachine machine;
+	private final SplittableRandom random;
+	private final int numRoles;
+	private final int[] legals;  // Legal move indices of the role being moved
+	private final int[] jointMove;  // Chosen move index per role
+	private final int[] goals;  // Goal per role at the end of the last playout
+	private int[] history = new int[256];  // Joint moves of the last playout, numRoles entries per step
+	private int numSteps = 0;
+	private int roleIndex = 0;  // Role the last playout was asked about
+	private long totalSteps = 0;  // Joint moves played over all playouts, to measure their length
+	private long totalChoices = 0;  // Legal moves summed over every role and step, to measure the branching
+
+	private INHMastTable mast;
+	private INHMastTable.Delta mastDelta;  // This engine's playouts not yet merged into mast
+	private double epsilon = 0.4;
+
+	public INHPlayoutEngine(INHPropNetStateMachine machine, SplittableRandom random) {
+		this.machine = machine;
+		this.random = random;
+		this.numRoles = machine.getRoles().size();
+		this.legals = new int[machine.getMaxLegals()];
+		this.jointMove = new int[this.numRoles];
+		this.goals = new int[this.numRoles];
+	}
+
+	/* Null for uniformly random playouts */
+	public void setMast(INHMastTable mast, double epsilon) {
+		this.mast = mast;
+		this.mastDelta = (mast != null) ? mast.newDelta() : null;
+		this.epsilon = epsilon;
+	}
+
+	/* Plays joint moves from state to the end of the game and returns the goal of role */
+	public int playout(MachineState state, Role role) throws MoveDefinitionException, GoalDefinitionException {
+		INHPropNetStateMachine machine = this.machine;
+		this.roleIndex = machine.getRoleIndex(role);
+		this.numSteps = 0;
+		machine.loadScratchState(state);
+		while (!machine.isScratchTerminal()) {
+			if ((this.numSteps + 1) * this.numRoles > this.history.length) {
+				this.history = Arrays.copyOf(this.history, 2 * this.history.length);
+			}
+			for (int r = 0; r < this.numRoles; r++) {
+				int count = machine.getScratchLegals(r, this.legals);
+				if (count == 0) {
+					throw new MoveDefinitionException(state, machine.getRoles().get(r));
+				}
+				this.totalChoices += count;
+				this.jointMove[r] = chooseMove(r, count);
+				this.history[this.numSteps * this.numRoles + r] = this.jointMove[r];
+			}
+			this.numSteps++;
+			machine.advanceScratchState(this.jointMove);
+		}
+		this.totalSteps += this.numSteps;
+		for (int r = 0; r < this.numRoles; r++) {
+			this.goals[r] = machine.getScratchGoal(r);
+		}
+		if (this.mastDelta != null) {
+			this.mastDelta.update(this.history, this.numSteps, this.goals);
+		}
+		int goal = this.goals[this.roleIndex];
+		if (goal < 0) {
+			throw new GoalDefinitionException(state, role);
+		}
+		return goal;
+	}
+
+	/* Picks among the first count entries of legals, breaking ties between the best moves at random */
+	private int chooseMove(int role, int count) {
+		if (this.mast == null || count == 1 || this.random.nextDouble() < this.epsilon) {
+			return this.legals[this.random.nextInt(count)];
+		}
+		int best = this.legals[0];
+		double bestAverage = this.mast.getAverage(role, best);
+		int numBest = 1;
+		for (int i = 1; i < count; i++) {
+			double average = this.mast.getAverage(role, this.legals[i]);
+			if (average > bestAverage) {
+				best = this.legals[i];
+				bestAverage = average;
+				numBest = 1;
+			} else if (average == bestAverage && this.random.nextInt(++numBest) == 0) {
+				best = this.legals[i];
+			}
+		}
+		return best;
+	}
+
+	/* Adds the goal of every role in the last playout to totals (by role index), a missing goal as 0 */
+	public void addGoals(double[] totals) {
+		for (int r = 0; r < this.numRoles; r++) {
+			totals[r] += Math.max(0, this.goals[r]);
+		}
+	}
+
+	public long getTotalSteps() {
+		return this.totalSteps;
+	}
+
+	public long getTotalChoices() {
+		return this.totalChoices;
+	}
+
+	/* Moves made in the last playout by the role it was asked about */
+	public int getNumPlayed() {
+		return this.numSteps;
+	}
+
+	public int getPlayed(int i) {
+		return this.history[i * this.numRoles + this.roleIndex];
+	}
+}
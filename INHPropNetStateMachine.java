@@ -0,0 +1,596 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * Insert_Team_Name
+ * PropNet State Machine
+ * Builds a propositional network from the game rules and compiles it into flat
+ * arrays, so that every query is a single forward pass over the components in
+ * topological order instead of a backward-chaining proof. States are handed out
+ * as INHBitSetMachineStates over the base propositions.
+ *
+ */
+public class INHPropNetStateMachine extends StateMachine {
+
+	// Component types
+	private static final byte BASE = 0;
+	private static final byte INPUT = 1;
+	private static final byte INIT = 2;
+	private static final byte VIEW = 3;
+	private static final byte AND = 4;
+	private static final byte OR = 5;
+	private static final byte NOT = 6;
+	private static final byte TRANSITION = 7;
+	private static final byte TRUE = 8;
+	private static final byte FALSE = 9;
+
+	private List<Role> roles;
+
+	// Compiled network (never modified after initialize, so copies may share it)
+	private byte[] types;
+	private int[] inputOffsets;  // inputs of component c are inputIds[inputOffsets[c] .. inputOffsets[c + 1]]
+	private int[] inputIds;
+	private int[] ordering;  // Components that have to be computed, in topological order
+
+	private int[] baseIds;  // Component id of each base proposition
+	private int[] nextIds;  // Component id of the transition feeding each base proposition (-1 if none)
+	private GdlSentence[] baseSentences;
+	private Map<GdlSentence, Integer> baseIndices;
+	private long[] baseKeys;  // Random key per base proposition, XORed into the state fingerprint
+
+	private int[][] legalIds;  // Per role: legal propositions
+	private int[][] moveIds;  // Per role: input proposition matching each legal proposition (the spare slot if none)
+	private Move[][] moves;  // Per role: move matching each legal proposition
+	private List<Map<Move, Integer>> moveIndices;
+
+	private int[][] goalIds;
+	private int[][] goalValues;
+
+	private int terminalId;
+	private int initId;
+
+	// Scratch values of the last propagation (owned by this instance only)
+	private boolean[] values;
+	private MachineState lastState;
+
+	public INHPropNetStateMachine() {
+
+	}
+
+	/* Shares the compiled network of another machine, but not its scratch values */
+	private INHPropNetStateMachine(INHPropNetStateMachine other) {
+		this.roles = other.roles;
+		this.types = other.types;
+		this.inputOffsets = other.inputOffsets;
+		this.inputIds = other.inputIds;
+		this.ordering = other.ordering;
+		this.baseIds = other.baseIds;
+		this.nextIds = other.nextIds;
+		this.baseSentences = other.baseSentences;
+		this.baseIndices = other.baseIndices;
+		this.baseKeys = other.baseKeys;
+		this.legalIds = other.legalIds;
+		this.moveIds = other.moveIds;
+		this.moves = other.moves;
+		this.moveIndices = other.moveIndices;
+		this.goalIds = other.goalIds;
+		this.goalValues = other.goalValues;
+		this.terminalId = other.terminalId;
+		this.initId = other.initId;
+		this.values = new boolean[other.values.length];
+		this.lastState = null;
+	}
+
+	/**
+	 * Returns a new machine for the same game that can be used from another
+	 * thread. The compiled network is shared, so this is cheap.
+	 */
+	public INHPropNetStateMachine duplicate() {
+		return new INHPropNetStateMachine(this);
+	}
+
+	@Override
+	public void initialize(List<Gdl> description) {
+		PropNet propNet;
+		try {
+			propNet = OptimizingPropNetFactory.create(description);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		compile(propNet);
+	}
+
+	/* Flattens the PropNet into the arrays used by propagate */
+	private void compile(PropNet propNet) {
+		this.roles = propNet.getRoles();
+
+		// Number every component
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		Map<Component, Integer> ids = new IdentityHashMap<Component, Integer>();
+		for (int i = 0; i < components.size(); i++) {
+			ids.put(components.get(i), i);
+		}
+
+		Set<Proposition> bases = new HashSet<Proposition>(propNet.getBasePropositions().values());
+		Set<Proposition> inputs = new HashSet<Proposition>(propNet.getInputPropositions().values());
+		Proposition init = propNet.getInitProposition();
+
+		int numComponents = components.size();
+		this.types = new byte[numComponents];
+		this.inputOffsets = new int[numComponents + 1];
+		List<Integer> flatInputs = new ArrayList<Integer>();
+		for (int i = 0; i < numComponents; i++) {
+			Component component = components.get(i);
+			this.types[i] = typeOf(component, bases, inputs, init);
+			this.inputOffsets[i] = flatInputs.size();
+			if (!isSource(this.types[i])) {
+				for (Component input : component.getInputs()) {
+					flatInputs.add(ids.get(input));
+				}
+			}
+		}
+		this.inputOffsets[numComponents] = flatInputs.size();
+		this.inputIds = toArray(flatInputs);
+		this.ordering = topologicalOrdering(numComponents);
+
+		// Base propositions and their transitions
+		List<GdlSentence> baseNames = new ArrayList<GdlSentence>(propNet.getBasePropositions().keySet());
+		int numBases = baseNames.size();
+		this.baseIds = new int[numBases];
+		this.nextIds = new int[numBases];
+		this.baseSentences = new GdlSentence[numBases];
+		this.baseIndices = new HashMap<GdlSentence, Integer>();
+		this.baseKeys = new long[numBases];
+		Random random = new Random(numBases);
+		for (int i = 0; i < numBases; i++) {
+			this.baseKeys[i] = random.nextLong();
+			Proposition base = propNet.getBasePropositions().get(baseNames.get(i));
+			this.baseIds[i] = ids.get(base);
+			this.nextIds[i] = base.getInputs().isEmpty() ? -1 : ids.get(base.getSingleInput());
+			this.baseSentences[i] = baseNames.get(i);
+			this.baseIndices.put(baseNames.get(i), i);
+		}
+
+		// Legal and input propositions, per role
+		Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+		int numRoles = this.roles.size();
+		this.legalIds = new int[numRoles][];
+		this.moveIds = new int[numRoles][];
+		this.moves = new Move[numRoles][];
+		this.moveIndices = new ArrayList<Map<Move, Integer>>();
+		this.goalIds = new int[numRoles][];
+		this.goalValues = new int[numRoles][];
+		for (int r = 0; r < numRoles; r++) {
+			Role role = this.roles.get(r);
+			// A legal move whose does proposition appears in no rule has no input in the PropNet, but is still legal
+			List<Proposition> legals = new ArrayList<Proposition>(propNet.getLegalPropositions().get(role));
+			this.legalIds[r] = new int[legals.size()];
+			this.moveIds[r] = new int[legals.size()];
+			this.moves[r] = new Move[legals.size()];
+			Map<Move, Integer> indices = new HashMap<Move, Integer>();
+			for (int i = 0; i < legals.size(); i++) {
+				Proposition legal = legals.get(i);
+				this.legalIds[r][i] = ids.get(legal);
+				Proposition input = legalInputMap.get(legal);
+				this.moveIds[r][i] = (input == null) ? numComponents : ids.get(input);
+				this.moves[r][i] = new Move(legal.getName().get(1));
+				indices.put(this.moves[r][i], i);
+			}
+			this.moveIndices.add(indices);
+
+			List<Proposition> goals = new ArrayList<Proposition>(propNet.getGoalPropositions().get(role));
+			this.goalIds[r] = new int[goals.size()];
+			this.goalValues[r] = new int[goals.size()];
+			for (int i = 0; i < goals.size(); i++) {
+				this.goalIds[r][i] = ids.get(goals.get(i));
+				this.goalValues[r][i] = getGoalValue(goals.get(i));
+			}
+		}
+
+		this.terminalId = ids.get(propNet.getTerminalProposition());
+		this.initId = (init == null) ? -1 : ids.get(init);
+		this.values = new boolean[numComponents + 1];  // The spare slot is the input of every move without one
+		this.lastState = null;
+	}
+
+	private static byte typeOf(Component component, Set<Proposition> bases, Set<Proposition> inputs, Proposition init) {
+		if (component instanceof Proposition) {
+			if (bases.contains(component)) {
+				return BASE;
+			}
+			if (inputs.contains(component)) {
+				return INPUT;
+			}
+			if (component == init) {
+				return INIT;
+			}
+			return VIEW;
+		}
+		if (component instanceof And) {
+			return AND;
+		}
+		if (component instanceof Or) {
+			return OR;
+		}
+		if (component instanceof Not) {
+			return NOT;
+		}
+		if (component instanceof Transition) {
+			return TRANSITION;
+		}
+		if (component instanceof Constant) {
+			return component.getValue() ? TRUE : FALSE;
+		}
+		throw new IllegalStateException("Unknown component type: " + component.getClass());
+	}
+
+	/* Sources get their value from the state or the moves, not from their inputs */
+	private static boolean isSource(byte type) {
+		return type == BASE || type == INPUT || type == INIT;
+	}
+
+	/* Kahn's algorithm over the edges that remain once sources are cut loose */
+	private int[] topologicalOrdering(int numComponents) {
+		int[] pending = new int[numComponents];
+		List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+		for (int c = 0; c < numComponents; c++) {
+			outputs.add(new ArrayList<Integer>());
+		}
+		for (int c = 0; c < numComponents; c++) {
+			for (int k = this.inputOffsets[c]; k < this.inputOffsets[c + 1]; k++) {
+				outputs.get(this.inputIds[k]).add(c);
+				pending[c]++;
+			}
+		}
+
+		int[] queue = new int[numComponents];
+		int head = 0;
+		int tail = 0;
+		for (int c = 0; c < numComponents; c++) {
+			if (pending[c] == 0) {
+				queue[tail++] = c;
+			}
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		while (head < tail) {
+			int c = queue[head++];
+			if (!isSource(this.types[c])) {
+				order.add(c);
+			}
+			for (int output : outputs.get(c)) {
+				if (--pending[output] == 0) {
+					queue[tail++] = output;
+				}
+			}
+		}
+		if (tail != numComponents) {
+			throw new IllegalStateException("PropNet has a cycle that does not go through a transition");
+		}
+		return toArray(order);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	private static int getGoalValue(Proposition goalProposition) {
+		GdlRelation relation = (GdlRelation) goalProposition.getName();
+		GdlConstant constant = (GdlConstant) relation.get(1);
+		return Integer.parseInt(constant.toString());
+	}
+
+	/* Computes every non-source component from the values of the sources */
+	private void propagate() {
+		boolean[] values = this.values;
+		for (int i = 0; i < this.ordering.length; i++) {
+			int c = this.ordering[i];
+			int start = this.inputOffsets[c];
+			int end = this.inputOffsets[c + 1];
+			boolean value;
+			switch (this.types[c]) {
+			case AND:
+				value = true;
+				for (int k = start; k < end; k++) {
+					if (!values[this.inputIds[k]]) {
+						value = false;
+						break;
+					}
+				}
+				break;
+			case OR:
+				value = false;
+				for (int k = start; k < end; k++) {
+					if (values[this.inputIds[k]]) {
+						value = true;
+						break;
+					}
+				}
+				break;
+			case NOT:
+				value = !values[this.inputIds[start]];
+				break;
+			case TRUE:
+				value = true;
+				break;
+			case FALSE:
+				value = false;
+				break;
+			default:  // VIEW and TRANSITION just copy their single input
+				value = (start < end) && values[this.inputIds[start]];
+				break;
+			}
+			values[c] = value;
+		}
+	}
+
+	/* Only our own states can be read bit by bit */
+	private boolean isOwnState(MachineState state) {
+		return (state instanceof INHBitSetMachineState)
+				&& ((INHBitSetMachineState) state).hasBases(this.baseSentences);
+	}
+
+	/* Loads the state into the base propositions and clears all inputs */
+	private void markState(MachineState state) {
+		boolean[] values = this.values;
+		if (isOwnState(state)) {
+			INHBitSetMachineState bitState = (INHBitSetMachineState) state;
+			for (int i = 0; i < this.baseIds.length; i++) {
+				values[this.baseIds[i]] = (bitState.word(i >>> 6) & (1L << i)) != 0;
+			}
+		} else {
+			for (int i = 0; i < this.baseIds.length; i++) {
+				values[this.baseIds[i]] = false;
+			}
+			for (GdlSentence sentence : state.getContents()) {
+				Integer index = this.baseIndices.get(sentence);
+				if (index != null) {
+					values[this.baseIds[index]] = true;
+				}
+			}
+		}
+		clearInputs();
+		if (this.initId >= 0) {
+			values[this.initId] = false;
+		}
+	}
+
+	private void clearInputs() {
+		for (int r = 0; r < this.moveIds.length; r++) {
+			for (int i = 0; i < this.moveIds[r].length; i++) {
+				this.values[this.moveIds[r][i]] = false;
+			}
+		}
+	}
+
+	/* Legal, goal and terminal do not depend on the inputs (GDL forbids it), so one pass serves them all */
+	private void propagateState(MachineState state) {
+		if (isSameState(state)) {
+			return;
+		}
+		markState(state);
+		propagate();
+		this.lastState = state;
+	}
+
+	/* Equal states propagate to the same values, and our fingerprints make the check cheap */
+	private boolean isSameState(MachineState state) {
+		if (state == this.lastState) {
+			return true;
+		}
+		return this.lastState != null && isOwnState(state) && state.equals(this.lastState);
+	}
+
+	/* Reads the next state off the transitions of the last propagation */
+	private MachineState readNextState() {
+		long[] bits = new long[INHBitSetMachineState.numWords(this.nextIds.length)];
+		long fingerprint = 0;
+		for (int i = 0; i < this.nextIds.length; i++) {
+			if (this.nextIds[i] >= 0 && this.values[this.nextIds[i]]) {
+				bits[i >>> 6] |= 1L << i;
+				fingerprint ^= this.baseKeys[i];
+			}
+		}
+		return new INHBitSetMachineState(bits, fingerprint, this.baseSentences);
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		long[] bits = new long[INHBitSetMachineState.numWords(this.baseIds.length)];
+		long fingerprint = 0;
+		for (GdlSentence sentence : sentenceList) {
+			Integer index = this.baseIndices.get(sentence);
+			if (index != null) {
+				bits[index >>> 6] |= 1L << index;
+				fingerprint ^= this.baseKeys[index];
+			}
+		}
+		return new INHBitSetMachineState(bits, fingerprint, this.baseSentences);
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+		propagateState(state);
+		int r = this.roles.indexOf(role);
+		for (int i = 0; i < this.goalIds[r].length; i++) {
+			if (this.values[this.goalIds[r][i]]) {
+				return this.goalValues[r][i];
+			}
+		}
+		throw new GoalDefinitionException(state, role);
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state) {
+		propagateState(state);
+		return this.values[this.terminalId];
+	}
+
+	@Override
+	public List<Role> getRoles() {
+		return this.roles;
+	}
+
+	@Override
+	public MachineState getInitialState() {
+		Arrays.fill(this.values, false);
+		if (this.initId >= 0) {
+			this.values[this.initId] = true;
+		}
+		propagate();
+		MachineState initialState = readNextState();
+		if (this.initId >= 0) {
+			this.values[this.initId] = false;
+		}
+		this.lastState = null;
+		return initialState;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+		propagateState(state);
+		int r = this.roles.indexOf(role);
+		List<Move> legalMoves = new ArrayList<Move>();
+		for (int i = 0; i < this.legalIds[r].length; i++) {
+			if (this.values[this.legalIds[r][i]]) {
+				legalMoves.add(this.moves[r][i]);
+			}
+		}
+		if (legalMoves.isEmpty()) {
+			throw new MoveDefinitionException(state, role);
+		}
+		return legalMoves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+		if (!isSameState(state)) {
+			markState(state);
+		} else {
+			clearInputs();
+		}
+		for (int r = 0; r < moves.size(); r++) {
+			Integer index = this.moveIndices.get(r).get(moves.get(r));
+			if (index == null) {
+				throw new TransitionDefinitionException(state, moves);
+			}
+			this.values[this.moveIds[r][index]] = true;
+		}
+		propagate();
+
+		// Legal, goal and terminal ignore the inputs, so this pass still describes state
+		this.lastState = state;
+		return readNextState();
+	}
+
+	/*
+	 * Scratch state: a state held only in the base propositions, advanced in place by
+	 * the playout engine without making a MachineState or a move list per step.
+	 * Any of these calls leaves the values out of step with lastState, so they forget it.
+	 */
+
+	public int getRoleIndex(Role role) {
+		return this.roles.indexOf(role);
+	}
+
+	/* Number of distinct moves of role, i.e. the range of its move indices */
+	public int getNumMoves(int role) {
+		return this.moves[role].length;
+	}
+
+	/* Index of move among the moves of role, or -1 if it is not one */
+	public int getMoveIndex(int role, Move move) {
+		Integer index = this.moveIndices.get(role).get(move);
+		return (index == null) ? -1 : index;
+	}
+
+	/* Most legal propositions any role has, i.e. the size of a buffer for getScratchLegals */
+	public int getMaxLegals() {
+		int max = 0;
+		for (int r = 0; r < this.legalIds.length; r++) {
+			max = Math.max(max, this.legalIds[r].length);
+		}
+		return max;
+	}
+
+	public void loadScratchState(MachineState state) {
+		markState(state);
+		propagate();
+		this.lastState = null;
+	}
+
+	public boolean isScratchTerminal() {
+		return this.values[this.terminalId];
+	}
+
+	/* Writes the indices of the legal moves of role into buffer and returns how many there are */
+	public int getScratchLegals(int role, int[] buffer) {
+		int[] legals = this.legalIds[role];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (this.values[legals[i]]) {
+				buffer[count++] = i;
+			}
+		}
+		return count;
+	}
+
+	/* Returns -1 if no goal proposition of role is true */
+	public int getScratchGoal(int role) {
+		for (int i = 0; i < this.goalIds[role].length; i++) {
+			if (this.values[this.goalIds[role][i]]) {
+				return this.goalValues[role][i];
+			}
+		}
+		return -1;
+	}
+
+	/* Plays one joint move (an index per role, as given by getScratchLegals) on the scratch state */
+	public void advanceScratchState(int[] jointMove) {
+		boolean[] values = this.values;
+		clearInputs();
+		for (int r = 0; r < jointMove.length; r++) {
+			values[this.moveIds[r][jointMove[r]]] = true;
+		}
+		propagate();
+
+		// Transitions are computed, so the bases can be overwritten in place
+		for (int i = 0; i < this.baseIds.length; i++) {
+			values[this.baseIds[i]] = this.nextIds[i] >= 0 && values[this.nextIds[i]];
+		}
+		clearInputs();
+		propagate();
+		this.lastState = null;
+	}
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Insert_Team_Name
+ * Shared Node Pool
+ * The thread-safe counterpart of INHNodePool, for a search tree that several
+ * threads grow at once. A node is an int id. Its visits, total utility and
+ * virtual loss live in atomic arrays, so threads update them without locks.
+ * Its children are a run of node ids in a shared edge array. The node objects
+ * keep everything else and are only looked up through their ids.
+ *
+ * Fields live in fixed-size chunks that are never moved, so growing the pool
+ * never copies anything a thread may be reading. Adding a chunk replaces the
+ * chunk table under a lock.
+ *
+ * The children of a node are published with one volatile write of their range
+ * (first edge and count packed into a long), after their ids are written, so a
+ * thread that reads the range also sees the ids. A published run is never
+ * changed: setChildren writes a new one, and the old edges stay valid for
+ * threads still reading them until compact recycles them.
+ *
+ * compact recycles every node no longer reachable and every edge no longer in
+ * use. It must only run while no other thread uses the pool.
+ */
+public class INHSharedNodePool<N> {
+
+	public static final int NONE = -1;
+
+	private static final int CHUNK_SHIFT = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/* The fields of CHUNK_SIZE consecutive nodes */
+	private static class Chunk {
+		final AtomicIntegerArray visits = new AtomicIntegerArray(CHUNK_SIZE);
+		final AtomicIntegerArray virtualLoss = new AtomicIntegerArray(CHUNK_SIZE);
+		final AtomicLongArray utility = new AtomicLongArray(CHUNK_SIZE);  // Bits of a double, so it can be compare-and-set
+		final AtomicLongArray children = new AtomicLongArray(CHUNK_SIZE);  // First edge << 32 | count
+		final Object[] nodes = new Object[CHUNK_SIZE];
+	}
+
+	private volatile Chunk[] chunks = new Chunk[0];
+	private volatile int[][] edges = new int[0][];
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final AtomicInteger numEdges = new AtomicInteger(0);
+
+	public int size() {
+		return this.size.get();
+	}
+
+	/* Returns the id of node, with no statistics and no children */
+	public int allocate(N node) {
+		int id = this.size.getAndIncrement();
+		Chunk chunk = chunk(id);
+		int i = id & CHUNK_MASK;
+		chunk.visits.set(i, 0);
+		chunk.virtualLoss.set(i, 0);
+		chunk.utility.set(i, Double.doubleToRawLongBits(0));
+		chunk.children.set(i, 0);
+		chunk.nodes[i] = node;
+		return id;
+	}
+
+	/* The chunk of id, added if this is its first node */
+	private Chunk chunk(int id) {
+		int c = id >>> CHUNK_SHIFT;
+		Chunk[] chunks = this.chunks;
+		if (c < chunks.length) {
+			return chunks[c];
+		}
+		synchronized (this) {
+			chunks = this.chunks;
+			if (c >= chunks.length) {
+				Chunk[] grown = Arrays.copyOf(chunks, c + 1);
+				for (int k = chunks.length; k <= c; k++) {
+					grown[k] = new Chunk();
+				}
+				this.chunks = grown;
+				chunks = grown;
+			}
+			return chunks[c];
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public N getNode(int id) {
+		return (N) this.chunks[id >>> CHUNK_SHIFT].nodes[id & CHUNK_MASK];
+	}
+
+	public int getVisits(int id) {
+		return this.chunks[id >>> CHUNK_SHIFT].visits.get(id & CHUNK_MASK);
+	}
+
+	public double getUtility(int id) {
+		return Double.longBitsToDouble(this.chunks[id >>> CHUNK_SHIFT].utility.get(id & CHUNK_MASK));
+	}
+
+	public int getVirtualLoss(int id) {
+		return this.chunks[id >>> CHUNK_SHIFT].virtualLoss.get(id & CHUNK_MASK);
+	}
+
+	/* One visit with the given score */
+	public void update(int id, double value) {
+		Chunk chunk = this.chunks[id >>> CHUNK_SHIFT];
+		int i = id & CHUNK_MASK;
+		chunk.visits.incrementAndGet(i);
+		while (true) {
+			long bits = chunk.utility.get(i);
+			long newBits = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value);
+			if (chunk.utility.compareAndSet(i, bits, newBits)) {
+				return;
+			}
+		}
+	}
+
+	public void addVirtualLoss(int id, int delta) {
+		this.chunks[id >>> CHUNK_SHIFT].virtualLoss.addAndGet(id & CHUNK_MASK, delta);
+	}
+
+	/* The range of the children of id, for first and count; read once, so both come from the same publication */
+	public long getChildren(int id) {
+		return this.chunks[id >>> CHUNK_SHIFT].children.get(id & CHUNK_MASK);
+	}
+
+	public static int first(long range) {
+		return (int) (range >>> 32);
+	}
+
+	public static int count(long range) {
+		return (int) range;
+	}
+
+	/* The node at an edge of a range */
+	public N getChild(int edge) {
+		return getNode(getChildId(edge));
+	}
+
+	public int getChildId(int edge) {
+		return this.edges[edge >>> CHUNK_SHIFT][edge & CHUNK_MASK];
+	}
+
+	/* Publishes the first count of ids as the children of id, replacing any it had */
+	public void setChildren(int id, int[] ids, int count) {
+		int first = this.numEdges.getAndAdd(count);
+		int[][] edges = edgeChunks(first + count);
+		for (int k = 0; k < count; k++) {
+			int edge = first + k;
+			edges[edge >>> CHUNK_SHIFT][edge & CHUNK_MASK] = ids[k];
+		}
+		this.chunks[id >>> CHUNK_SHIFT].children.set(id & CHUNK_MASK, ((long) first << 32) | count);
+	}
+
+	/*
+	 * Adds child to the children of id, whose range has capacity edges reserved from its first; the
+	 * reader of a shorter range never looks at the new edge, so the count is published as usual. A
+	 * full range moves to one twice its size. Returns the capacity after the append. Threads adding
+	 * to the same node must hold a lock, and a range compact rewrote has no spare capacity.
+	 */
+	public int appendChild(int id, int child, int capacity) {
+		long range = getChildren(id);
+		int first = first(range);
+		int count = count(range);
+		if (count >= capacity) {
+			capacity = Math.max(4, 2 * count);
+			int newFirst = this.numEdges.getAndAdd(capacity);
+			int[][] edges = edgeChunks(newFirst + capacity);
+			for (int k = 0; k < count; k++) {
+				int edge = first + k;
+				int newEdge = newFirst + k;
+				edges[newEdge >>> CHUNK_SHIFT][newEdge & CHUNK_MASK] = edges[edge >>> CHUNK_SHIFT][edge & CHUNK_MASK];
+			}
+			first = newFirst;
+		}
+		int edge = first + count;
+		this.edges[edge >>> CHUNK_SHIFT][edge & CHUNK_MASK] = child;
+		this.chunks[id >>> CHUNK_SHIFT].children.set(id & CHUNK_MASK, ((long) first << 32) | (count + 1));
+		return capacity;
+	}
+
+	/* Drops the children of id; its statistics stay */
+	public void clearChildren(int id) {
+		this.chunks[id >>> CHUNK_SHIFT].children.set(id & CHUNK_MASK, 0);
+	}
+
+	/* The edge chunks, with room for end edges */
+	private int[][] edgeChunks(int end) {
+		int needed = (end + CHUNK_MASK) >>> CHUNK_SHIFT;
+		int[][] edges = this.edges;
+		if (needed <= edges.length) {
+			return edges;
+		}
+		synchronized (this) {
+			edges = this.edges;
+			if (needed > edges.length) {
+				int[][] grown = Arrays.copyOf(edges, Math.max(needed, edges.length * 2));
+				for (int k = edges.length; k < grown.length; k++) {
+					grown[k] = new int[CHUNK_SIZE];
+				}
+				this.edges = grown;
+				edges = grown;
+			}
+			return edges;
+		}
+	}
+
+	/*
+	 * Recycles every node that can no longer be reached from root, and every edge not in a current
+	 * range. The survivors move down to the lowest ids in their old order (so a node never overwrites
+	 * one not yet moved) and the edges are rewritten without gaps. Returns the new id of each old
+	 * node, NONE if dropped; the caller renumbers the node objects from it. Only call it while no
+	 * other thread uses the pool.
+	 */
+	public int[] compact(int root) {
+		int oldSize = this.size.get();
+		int[] remap = new int[oldSize];
+		Arrays.fill(remap, NONE);
+		int[] stack = new int[oldSize];  // Every node is pushed at most once
+		int top = 0;
+		remap[root] = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			long range = getChildren(stack[--top]);
+			for (int k = 0; k < count(range); k++) {
+				int child = getChildId(first(range) + k);
+				if (remap[child] == NONE) {
+					remap[child] = 0;
+					stack[top++] = child;
+				}
+			}
+		}
+
+		int newSize = 0;
+		for (int id = 0; id < oldSize; id++) {
+			if (remap[id] != NONE) {
+				remap[id] = newSize;
+				move(id, newSize);
+				newSize++;
+			}
+		}
+
+		int total = 0;
+		for (int id = 0; id < newSize; id++) {
+			total += count(getChildren(id));
+		}
+		int[][] oldEdges = this.edges;
+		int[][] newEdges = new int[(total + CHUNK_MASK) >>> CHUNK_SHIFT][];
+		for (int k = 0; k < newEdges.length; k++) {
+			newEdges[k] = new int[CHUNK_SIZE];
+		}
+		int newNumEdges = 0;
+		for (int id = 0; id < newSize; id++) {
+			Chunk chunk = this.chunks[id >>> CHUNK_SHIFT];
+			long range = chunk.children.get(id & CHUNK_MASK);
+			int count = count(range);
+			if (count == 0) {
+				continue;
+			}
+			for (int k = 0; k < count; k++) {
+				int edge = first(range) + k;
+				int newEdge = newNumEdges + k;
+				newEdges[newEdge >>> CHUNK_SHIFT][newEdge & CHUNK_MASK] = remap[oldEdges[edge >>> CHUNK_SHIFT][edge & CHUNK_MASK]];
+			}
+			chunk.children.set(id & CHUNK_MASK, ((long) newNumEdges << 32) | count);
+			newNumEdges += count;
+		}
+		this.edges = newEdges;
+		this.numEdges.set(newNumEdges);
+
+		for (int id = newSize; id < oldSize; id++) {  // Let the nodes be collected
+			this.chunks[id >>> CHUNK_SHIFT].nodes[id & CHUNK_MASK] = null;
+		}
+		this.size.set(newSize);
+		return remap;
+	}
+
+	private void move(int from, int to) {
+		if (from == to) {
+			return;
+		}
+		Chunk f = this.chunks[from >>> CHUNK_SHIFT];
+		int fi = from & CHUNK_MASK;
+		Chunk t = this.chunks[to >>> CHUNK_SHIFT];
+		int ti = to & CHUNK_MASK;
+		t.visits.set(ti, f.visits.get(fi));
+		t.virtualLoss.set(ti, f.virtualLoss.get(fi));
+		t.utility.set(ti, f.utility.get(fi));
+		t.children.set(ti, f.children.get(fi));
+		t.nodes[ti] = f.nodes[fi];
+	}
+}
@@ -0,0 +1,119 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Insert_Team_Name
+ * Simulation Controller
+ * Chooses how many playouts to run from each selected leaf, from running averages
+ * of what an MCTS iteration costs: T, the time spent in the tree (select, expand,
+ * backpropagate), and p, the time of one playout.
+ *
+ * Taking the information of a leaf evaluation from n playouts as n / (n + c),
+ * the information per millisecond n / ((n + c) * (T + n * p)) is largest at
+ * n = sqrt(c * T / p). Cheap playouts next to an expensive tree get several per
+ * leaf; long games where a playout dwarfs the tree get one.
+ *
+ * Every thread keeps its own running averages, so recording an iteration takes
+ * no lock and writes nothing shared; each thread folds the averages of all
+ * threads into the shared playout count every RECOMPUTE_SAMPLES iterations.
+ */
+public class INHSimulationController {
+
+	private static final double SMOOTHING = 0.05;  // Weight of the newest sample in the running averages
+	private static final double HALF_INFORMATION_PLAYOUTS = 4;  // c: playouts that give half the information of infinitely many
+	private static final int RECOMPUTE_SAMPLES = 64;  // Iterations of a thread between updates of the playout count
+
+	private final int minSimulations;
+	private final int maxSimulations;
+	private volatile int simulations;
+
+	private volatile double seedPlayoutNanos = -1;  // From calibration, the starting point of every thread's averages
+	private volatile double seedPlayoutSteps = -1;
+
+	private final List<Averages> threads = new CopyOnWriteArrayList<Averages>();
+	private final ThreadLocal<Averages> local = new ThreadLocal<Averages>() {
+		@Override
+		protected Averages initialValue() {
+			Averages averages = new Averages();
+			averages.playoutNanos = INHSimulationController.this.seedPlayoutNanos;
+			averages.playoutSteps = INHSimulationController.this.seedPlayoutSteps;
+			INHSimulationController.this.threads.add(averages);
+			return averages;
+		}
+	};
+
+	/* Running averages of one thread, negative until its first sample; only that thread writes them */
+	private static class Averages {
+		volatile double treeNanos = -1;
+		volatile double playoutNanos = -1;
+		volatile double playoutSteps = -1;
+		int samples = 0;
+	}
+
+	public INHSimulationController(int initialSimulations, int minSimulations, int maxSimulations) {
+		this.minSimulations = minSimulations;
+		this.maxSimulations = maxSimulations;
+		this.simulations = initialSimulations;
+	}
+
+	public int getSimulations() {
+		return this.simulations;
+	}
+
+	/*
+	 * Playout cost measured before the search, such as in the start clock. Threads that have not
+	 * recorded an iteration yet start their averages from it; the tree time is still unknown, so
+	 * the playout count is left alone until the first iteration.
+	 */
+	public void seed(long playoutNanos, double playoutSteps) {
+		this.seedPlayoutNanos = playoutNanos;
+		this.seedPlayoutSteps = playoutSteps;
+	}
+
+	/* Called after every iteration; steps is the total length of its playouts, or -1 if unknown */
+	public void record(long iterationTreeNanos, long iterationPlayoutNanos, int playouts, long steps) {
+		Averages averages = this.local.get();
+		averages.treeNanos = smooth(averages.treeNanos, iterationTreeNanos);
+		if (playouts <= 0) {  // A terminal leaf, nothing to learn about playouts
+			return;
+		}
+		averages.playoutNanos = smooth(averages.playoutNanos, (double) iterationPlayoutNanos / playouts);
+		if (steps >= 0) {
+			averages.playoutSteps = smooth(averages.playoutSteps, (double) steps / playouts);
+		}
+		if (averages.samples++ % RECOMPUTE_SAMPLES == 0) {  // Also right at the first sample
+			double treeNanos = mean(0);
+			double playoutNanos = mean(1);
+			double best = Math.sqrt(HALF_INFORMATION_PLAYOUTS * treeNanos / Math.max(1, playoutNanos));
+			this.simulations = (int) Math.max(this.minSimulations, Math.min(this.maxSimulations, Math.round(best)));
+		}
+	}
+
+	/* Mean over the threads that have a sample of the tree time (0), playout time (1) or playout length (2), or -1 */
+	private double mean(int which) {
+		double total = 0;
+		int count = 0;
+		for (int i = 0; i < this.threads.size(); i++) {
+			Averages averages = this.threads.get(i);
+			double value = (which == 0) ? averages.treeNanos : (which == 1) ? averages.playoutNanos : averages.playoutSteps;
+			if (value >= 0) {
+				total += value;
+				count++;
+			}
+		}
+		return (count > 0) ? total / count : -1;
+	}
+
+	private static double smooth(double average, double sample) {
+		return (average < 0) ? sample : average + SMOOTHING * (sample - average);
+	}
+
+	@Override
+	public String toString() {
+		double playoutSteps = mean(2);
+		return "Simulations per leaf: " + this.simulations
+				+ String.format(" (playout %.3f ms", mean(1) / 1e6)
+				+ ((playoutSteps >= 0) ? String.format(", %.1f steps", playoutSteps) : "")
+				+ String.format(", tree %.3f ms)", mean(0) / 1e6);
+	}
+}
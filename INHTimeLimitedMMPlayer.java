@@ -13,7 +13,6 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
  * Insert_Team_Name
@@ -23,8 +22,9 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  */
 public class INHTimeLimitedMMPlayer extends GGPlayer {
 
-	private long currTimeout = 0;
-	private long TIME_LIMIT = 500;
+	private INHClock clock = new INHClock();
+	private long lastCheck;  // nanoTime of the last look at the clock
+	private INHCheckedStateMachine checkedMachine;  // The PropNet, or the prover if it could not be built
 	private double bestSavedScore = 0;
 	private int bestSavedDepth = 0;
 	private int minDist = 3;
@@ -44,18 +44,22 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 		Player.initialize(new INHTimeLimitedMMPlayer().getName());
 	}
 
-	private long getTime() {
-		return currTimeout - System.currentTimeMillis();
+	/*
+	 * Checks the clock, first recording the time since the last check as one iteration: the search
+	 * looks at the clock once per node, so that is the work that has to fit after the last check.
+	 */
+	private boolean hasTime() {
+		long now = System.nanoTime();
+		clock.recordIteration(now - lastCheck);
+		lastCheck = now;
+		return clock.hasTime();
 	}
 
 	private double evalfn(Role role, MachineState state, StateMachine machine)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 
-		if (!timeIsUp) {
-			long timeLeft = getTime();
-			if (timeLeft < TIME_LIMIT) {
-				timeIsUp = true;
-			}
+		if (!timeIsUp && !hasTime()) {
+			timeIsUp = true;
 		}
 		double myReward = reward(role, state, machine);
 		if (myReward >= 100) {
@@ -73,11 +77,8 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 	private double evalfnCD(Role role, MachineState state, StateMachine machine)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 
-		if (!timeIsUp) {
-			long timeLeft = getTime();
-			if (timeLeft < TIME_LIMIT) {
-				timeIsUp = true;
-			}
+		if (!timeIsUp && !hasTime()) {
+			timeIsUp = true;
 		}
 		double val = reward(role, state, machine) + 3 * mobility(role, state, machine);
 		if (val < 0) {
@@ -103,26 +104,29 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 	}
 
 	/**
-	 * Currently, we can get along just fine by using the Prover State Machine.
-	 * We will implement a more optimized PropNet State Machine later. The Cached
-	 * State Machine is a wrapper that reduces the number of calls to the Prover
-	 * State Machine by returning results of method calls that have been made previously.
+	 * We use our PropNet State Machine, which compiles the rules passed to initialize
+	 * into a propositional network and answers queries with a forward pass instead of
+	 * proving them (or with the prover, if the PropNet cannot be built). The Cached
+	 * State Machine is a wrapper that reduces the number of calls to the machine by
+	 * returning results of method calls that have been made previously.
 	 * (e.g. getNextState calls or getLegalMoves for the same combination of parameters)
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		this.checkedMachine = new INHCheckedStateMachine();
+		return new CachedStateMachine(this.checkedMachine);
 	}
 
 	/**
-	 * If we wanted to use the metagame (or start) clock to compute something
-	 * about the game (or explore the game tree), we could do so here. Since
-	 * this is just a legal player, there is no need for such computation.
+	 * Uses the start clock to check our PropNet against the prover on random
+	 * games, and switches to the prover if the two disagree on anything.
 	 */
 	@Override
 	public void start(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
-
+		if (!this.checkedMachine.verify(timeout)) {
+			switchStateMachine(new CachedStateMachine(this.checkedMachine));
+		}
 	}
 
 	private double maxScore(Role role, MachineState state, StateMachine machine, int currDist, int maxDist, Move origMove)
@@ -131,8 +135,7 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 			return findReward(role, state, machine);
 		}
 
-		long timeLeft = getTime();
-		if (timeLeft < TIME_LIMIT || currDist == maxDist) {
+		if (!hasTime() || currDist == maxDist) {
 			double val = evalfn(role, state, machine);
 //			if (val < 99.99) {	// Stay Alive (short cut)
 //				val += 0.01;
@@ -198,8 +201,7 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 		if (findTerminalp(state, machine)) {
 			return findReward(role, state, machine);
 		}
-		long timeLeft = getTime();
-		if (timeLeft < TIME_LIMIT) {
+		if (!hasTime()) {
 			double val = evalfnCD(role, state, machine);
 //			if (val < 99.99) {
 //				val += 0.01;
@@ -240,9 +242,8 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 				currMove = legalMoves.get(i);
 			}
 		}
-		long timeLeft = getTime();
 		System.out.println();
-		System.out.println("Time Left: " + timeLeft);
+		System.out.println(clock);
 		System.out.println("I am compulsively playing: " + currMove);
 		return currMove;
 	}
@@ -346,17 +347,21 @@ public class INHTimeLimitedMMPlayer extends GGPlayer {
 		//Gets our role (e.g. X or O in a game of tic tac toe)
 		Role role = getRole();
 		roles = machine.getRoles();
-		currTimeout = timeout;
+		clock.start(timeout);
+		lastCheck = System.nanoTime();
 		timeIsUp = false;
 
 		// Determine Player
 		opponents = findOpponents(role, machine);
+		Move move;
 		if (opponents.size() == 0) {
-			return runCompulsive(timeout, machine, state, role);
+			move = runCompulsive(timeout, machine, state, role);
 		} else {//if (opponents.size() >= 1) {
 			opponent = opponents.get(0);
-			return iterativeDeepening(timeout, role, state, machine);
+			move = iterativeDeepening(timeout, role, state, machine);
 		}
+		clock.finish();
+		return move;
 	}
 
 	/**
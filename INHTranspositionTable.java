@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * Insert_Team_Name
+ * Transposition Table
+ * Remembers alpha-beta results by the Zobrist hash of a position, so that a
+ * position reached again (by another move order, or by the next iteration of
+ * iterative deepening) costs one probe, and its best move can be searched first.
+ *
+ * A fixed number of slots, indexed by the low bits of the hash, each one key and
+ * its value and one packed entry: the depth searched below it, the bound type and
+ * the index of the best move in the position's legal move list.
+ * Lock-free: the key is stored XORed with the entry and the value's bits, so a
+ * slot that another thread was halfway through writing fails the check and reads
+ * as a miss.
+ * A new position replaces whatever is in its slot; the same position only
+ * replaces a result that was searched less deep.
+ */
+public class INHTranspositionTable {
+
+	public static final long NONE = 0;
+	public static final int EXACT = 0;
+	public static final int LOWER = 1;  // The value is at least this (a beta cutoff)
+	public static final int UPPER = 2;  // The value is at most this (nothing beat alpha)
+
+	private static final int MAX_DEPTH = 0xFFFF;
+	private static final int MAX_MOVE = 0x1FFE;  // Best moves past this index are not remembered
+
+	private final long[] keys;
+	private final long[] entries;
+	private final long[] values;  // Bits of the double
+	private final int mask;
+	private long probes = 0;
+	private long hits = 0;
+
+	/* A table of 2^bits slots, 24 bytes each */
+	public INHTranspositionTable(int bits) {
+		this.keys = new long[1 << bits];
+		this.entries = new long[1 << bits];
+		this.values = new long[1 << bits];
+		this.mask = (1 << bits) - 1;
+	}
+
+	/* The entry stored for hash, or NONE; its value is read with getValue */
+	public long probe(long hash) {
+		this.probes++;
+		int slot = (int) hash & this.mask;
+		long entry = this.entries[slot];
+		if (entry == NONE || (this.keys[slot] ^ entry ^ this.values[slot]) != hash) {
+			return NONE;
+		}
+		this.hits++;
+		return entry;
+	}
+
+	/* Value of the entry probe last returned for hash (NaN if the slot has changed since) */
+	public double getValue(long hash, long entry) {
+		int slot = (int) hash & this.mask;
+		long value = this.values[slot];
+		if ((this.keys[slot] ^ this.entries[slot] ^ value) != hash || this.entries[slot] != entry) {
+			return Double.NaN;
+		}
+		return Double.longBitsToDouble(value);
+	}
+
+	/* move is the index of the best move in the legal move list, or -1 if none is known */
+	public void store(long hash, int depth, int bound, double value, int move) {
+		int slot = (int) hash & this.mask;
+		long old = this.entries[slot];
+		if (old != NONE && (this.keys[slot] ^ old ^ this.values[slot]) == hash && getDepth(old) > depth) {
+			return;
+		}
+		long entry = ((long) Math.min(depth, MAX_DEPTH) << 16)
+				| ((long) bound << 14)
+				| ((long) ((move >= 0 && move <= MAX_MOVE) ? move + 1 : 0) << 1)
+				| 1L;  // Never NONE
+		long valueBits = Double.doubleToRawLongBits(value);
+		this.keys[slot] = hash ^ entry ^ valueBits;
+		this.entries[slot] = entry;
+		this.values[slot] = valueBits;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.entries, NONE);
+		Arrays.fill(this.values, 0);
+		this.probes = 0;
+		this.hits = 0;
+	}
+
+	public static int getDepth(long entry) {
+		return (int) (entry >>> 16) & MAX_DEPTH;
+	}
+
+	public static int getBound(long entry) {
+		return (int) (entry >>> 14) & 3;
+	}
+
+	public static int getMove(long entry) {
+		return ((int) (entry >>> 1) & 0x1FFF) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "Transposition table: " + this.hits + " hits of " + this.probes + " probes";
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Insert_Team_Name
+ * UCB
+ * The UCB1 score value + sqrt(2 ln N / n) of a child with n visits under a parent
+ * with N, computed without a log, a division or a square root per child:
+ * sqrt(2 ln N) is the same for all siblings, so it is computed once per selection
+ * step (explorationScale), and 1 / n and 1 / sqrt(n) come from tables for the
+ * small visit counts that most children have.
+ *
+ * An unvisited child gets a huge exploration term instead of a division by zero,
+ * so it wins over every visited sibling without a special case.
+ */
+public final class INHUcb {
+
+	private static final int TABLE_SIZE = 4096;  // 32 KB per table, so they stay in cache
+	private static final double UNVISITED = 1e9;  // Exploration factor of a child with no visits
+
+	private static final double[] LOG = new double[TABLE_SIZE];
+	private static final double[] INVERSE = new double[TABLE_SIZE];
+	private static final double[] INVERSE_SQRT = new double[TABLE_SIZE];
+
+	static {
+		INVERSE_SQRT[0] = UNVISITED;
+		for (int n = 1; n < TABLE_SIZE; n++) {
+			LOG[n] = Math.log(n);
+			INVERSE[n] = 1.0 / n;
+			INVERSE_SQRT[n] = 1.0 / Math.sqrt(n);
+		}
+	}
+
+	private INHUcb() {
+	}
+
+	/* Natural log of n, 0 for n < 1 */
+	public static double log(int n) {
+		if (n < TABLE_SIZE) {
+			return (n > 0) ? LOG[n] : 0;
+		}
+		return Math.log(n);
+	}
+
+	/* 1 / n, 0 for n < 1 */
+	public static double inverse(int n) {
+		if (n < TABLE_SIZE) {
+			return (n > 0) ? INVERSE[n] : 0;
+		}
+		return 1.0 / n;
+	}
+
+	/* 1 / sqrt(n), UNVISITED for n < 1 */
+	public static double inverseSqrt(int n) {
+		if (n < TABLE_SIZE) {
+			return (n > 0) ? INVERSE_SQRT[n] : UNVISITED;
+		}
+		return 1.0 / Math.sqrt(n);
+	}
+
+	/* sqrt(2 ln N): the parent's part of the exploration term, once per selection step */
+	public static double explorationScale(int parentVisits) {
+		return Math.sqrt(2 * log(parentVisits));
+	}
+
+	/* UCB1 of a child from its total utility and visits, with the parent's explorationScale */
+	public static double score(double utility, int visits, double scale) {
+		return utility * inverse(visits) + scale * inverseSqrt(visits);
+	}
+
+	/*
+	 * The selection kernel: the index of the child with the best valueScale * utility / visits plus
+	 * exploration, over the first count entries of two primitive arrays, or -1 if count is 0. Ties go
+	 * to the first child. Whether every visit count is in the tables is decided once, before the loop,
+	 * from the OR of the counts; the usual loop is then table lookups and conditional moves only (an
+	 * unvisited child is entry 0 of the tables, not a special case). A child past the tables sends
+	 * the whole step to a loop that computes the terms. A child with a utility of minus infinity
+	 * scores minus infinity or NaN and is never picked.
+	 */
+	public static int best(double[] utilities, int[] visits, int count, double valueScale, double scale) {
+		return best(utilities, visits, 0, count, valueScale, scale);
+	}
+
+	/* The same over the count entries from first on, such as the edges of one node in INHNodePool; returns an index from first on */
+	public static int best(double[] utilities, int[] visits, int first, int count, double valueScale, double scale) {
+		int end = first + count;
+		int all = 0;
+		for (int i = first; i < end; i++) {
+			all |= visits[i];
+		}
+		if ((all & -TABLE_SIZE) != 0) {  // TABLE_SIZE is a power of two
+			return bestComputed(utilities, visits, first, end, valueScale, scale);
+		}
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int i = first; i < end; i++) {
+			int n = visits[i];
+			double score = valueScale * utilities[i] * INVERSE[n] + scale * INVERSE_SQRT[n];
+			boolean better = score > bestScore;
+			best = better ? i : best;
+			bestScore = better ? score : bestScore;
+		}
+		return best;
+	}
+
+	private static int bestComputed(double[] utilities, int[] visits, int first, int end, double valueScale, double scale) {
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int i = first; i < end; i++) {
+			double score = score(valueScale * utilities[i], visits[i], scale);
+			if (score > bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+}
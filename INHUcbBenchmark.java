@@ -0,0 +1,144 @@
+import java.util.SplittableRandom;
+
+/**
+ * Insert_Team_Name
+ * UCB Benchmark
+ * Times one selection step over the children of a node both ways: the plain
+ * formula with a log, a division and a square root per child, and INHUcb.best
+ * with the parent's term hoisted and table lookups. Both must pick the same
+ * child in every selection; the difference in nanoseconds per selection is the gain. Each round
+ * runs long enough for the JIT to have compiled both loops, so only the last
+ * rounds count.
+ *
+ * The same sibling sets are also built into an INHNodePool and selected from the
+ * way the basic MCTS player does: once with INHUcb.score per child through the
+ * pool's getters, as its loop had it, and once with INHUcb.best over the edge
+ * statistics of the parent, as it has it now.
+ *
+ * Usage: INHUcbBenchmark [children per node] [rounds]
+ */
+public class INHUcbBenchmark {
+
+	private static final int NODES = 1024;  // Distinct sibling sets, so the data is not all in registers
+	private static final int SELECTIONS = 2000000;  // Per round and way
+
+	public static void main(String[] args) {
+		int numChildren = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		SplittableRandom random = new SplittableRandom(42);
+		double[][] utilities = new double[NODES][numChildren];
+		int[][] visits = new int[NODES][numChildren];
+		int[] parentVisits = new int[NODES];
+		for (int node = 0; node < NODES; node++) {
+			for (int i = 0; i < numChildren; i++) {
+				visits[node][i] = 1 + random.nextInt(random.nextBoolean() ? 100 : 10000);
+				utilities[node][i] = visits[node][i] * random.nextInt(101);
+				parentVisits[node] += visits[node][i];
+			}
+		}
+
+		INHNodePool pool = new INHNodePool();
+		int[] parents = new int[NODES];
+		for (int node = 0; node < NODES; node++) {
+			parents[node] = pool.allocate(null, null, 0);
+			pool.reserveChildren(parents[node], numChildren);
+			for (int i = 0; i < numChildren; i++) {
+				int child = pool.allocate(null, null, 1);
+				pool.addChild(parents[node], child);
+			}
+			for (int i = 0; i < numChildren; i++) {  // Through the edge as well as the child, as the player backs up
+				int child = pool.getChild(parents[node], i);
+				for (int v = 0; v < visits[node][i]; v++) {
+					pool.update(child, utilities[node][i] / visits[node][i]);
+					pool.updateEdge(pool.getFirstEdge(parents[node]) + i, utilities[node][i] / visits[node][i]);
+					pool.update(parents[node], 0);
+				}
+			}
+			pool.setFlag(parents[node], INHNodePool.EXPANDED);
+		}
+
+		int[] plainChoices = new int[SELECTIONS];
+		int[] kernelChoices = new int[SELECTIONS];
+		int[] poolScoreChoices = new int[SELECTIONS];
+		int[] poolKernelChoices = new int[SELECTIONS];
+		for (int round = 0; round < rounds; round++) {
+			long startTime = System.nanoTime();
+			for (int s = 0; s < SELECTIONS; s++) {
+				int node = s % NODES;
+				plainChoices[s] = plain(utilities[node], visits[node], numChildren, parentVisits[node]);
+			}
+			long plainNanos = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int s = 0; s < SELECTIONS; s++) {
+				int node = s % NODES;
+				kernelChoices[s] = INHUcb.best(utilities[node], visits[node], numChildren, 1.0, INHUcb.explorationScale(parentVisits[node]));
+			}
+			long kernelNanos = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int s = 0; s < SELECTIONS; s++) {
+				poolScoreChoices[s] = poolScore(pool, parents[s % NODES]);
+			}
+			long poolScoreNanos = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int s = 0; s < SELECTIONS; s++) {
+				int parent = parents[s % NODES];
+				int first = pool.getFirstEdge(parent);
+				int edge = INHUcb.best(pool.getEdgeUtilities(), pool.getEdgeVisits(), first, pool.getChildCount(parent), 1.0,
+						INHUcb.explorationScale(pool.getVisits(parent)));
+				poolKernelChoices[s] = edge - first;
+			}
+			long poolKernelNanos = System.nanoTime() - startTime;
+
+			for (int s = 0; s < SELECTIONS; s++) {
+				if (plainChoices[s] != kernelChoices[s]) {
+					throw new IllegalStateException("Selection " + s + ": the kernel picked child " + kernelChoices[s]
+							+ ", the plain formula child " + plainChoices[s]);
+				}
+				if (poolScoreChoices[s] != poolKernelChoices[s]) {
+					throw new IllegalStateException("Pool selection " + s + ": the kernel picked child " + poolKernelChoices[s]
+							+ ", the score loop child " + poolScoreChoices[s]);
+				}
+			}
+			System.out.println("Round " + round + ", " + numChildren + " children: plain "
+					+ String.format("%.1f", (double) plainNanos / SELECTIONS) + " ns, kernel "
+					+ String.format("%.1f", (double) kernelNanos / SELECTIONS) + " ns per selection, speedup "
+					+ String.format("%.2f", (double) plainNanos / Math.max(1, kernelNanos)) + "; pool: score loop "
+					+ String.format("%.1f", (double) poolScoreNanos / SELECTIONS) + " ns, edge kernel "
+					+ String.format("%.1f", (double) poolKernelNanos / SELECTIONS) + " ns, speedup "
+					+ String.format("%.2f", (double) poolScoreNanos / Math.max(1, poolKernelNanos)));
+		}
+	}
+
+	/* The basic player's selection loop before it used the kernel; returns the child's position */
+	private static int poolScore(INHNodePool pool, int parent) {
+		double score = -1;
+		int result = -1;
+		double scale = INHUcb.explorationScale(pool.getVisits(parent));
+		for (int i = 0; i < pool.getChildCount(parent); i++) {
+			int child = pool.getChild(parent, i);
+			double newScore = INHUcb.score(pool.getUtility(child), pool.getVisits(child), scale);
+			if (newScore > score && !pool.hasFlag(child, INHNodePool.TERMINAL)) {
+				score = newScore;
+				result = i;
+			}
+		}
+		return result;
+	}
+
+	/* The selection loop as the players had it */
+	private static int plain(double[] utilities, int[] visits, int count, int parentVisits) {
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			double score = utilities[i] / visits[i] + Math.sqrt(2 * Math.log(parentVisits) / visits[i]);
+			if (score > bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+}
@@ -1,10 +1,14 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 import org.ggp.base.apps.player.Player;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -13,7 +17,6 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
  * Insert_Team_Name
@@ -23,8 +26,9 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  */
 public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 
-	private long currTimeout = 0;
-	private long TIME_LIMIT = 500;
+	private INHClock clock = new INHClock();
+	private long lastCheck;  // nanoTime of the last look at the clock
+	private INHCheckedStateMachine checkedMachine;  // The PropNet, or the prover if it could not be built
 	private double bestSavedScore = 0;
 	private int bestSavedDepth = 0;
 	private int minDist = 3;
@@ -34,6 +38,12 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 	private List<Role> roles;
 	private Role opponent;
 
+	// Results of earlier searches (earlier depths, earlier turns) by position; -Dinh.ttBits sets its size
+	private final INHTranspositionTable table = new INHTranspositionTable(Integer.getInteger("inh.ttBits", 20));
+	private static final long MIN_NODE_KEY = 0x9E3779B97F4A7C15L;  // Tells a min node from the max node of its state
+	private final Map<GdlSentence, Long> sentenceKeys = new HashMap<GdlSentence, Long>();  // Zobrist keys for prover states
+	private final SplittableRandom keyRandom = new SplittableRandom();
+
 	/**
 	 * All we have to do here is call the Player's initialize method with
 	 * our name as the argument so that the Player GUI knows which name to
@@ -44,18 +54,22 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 		Player.initialize(new INH_TimeLimitedMMPlayer2().getName());
 	}
 
-	private long getTime() {
-		return currTimeout - System.currentTimeMillis();
+	/*
+	 * Checks the clock, first recording the time since the last check as one iteration: the search
+	 * looks at the clock once per node, so that is the work that has to fit after the last check.
+	 */
+	private boolean hasTime() {
+		long now = System.nanoTime();
+		clock.recordIteration(now - lastCheck);
+		lastCheck = now;
+		return clock.hasTime();
 	}
 
 	private double evalfn(Role role, MachineState state, StateMachine machine)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 
-		if (!timeIsUp) {
-			long timeLeft = getTime();
-			if (timeLeft < TIME_LIMIT) {
-				timeIsUp = true;
-			}
+		if (!timeIsUp && !hasTime()) {
+			timeIsUp = true;
 		}
 		double myReward = reward(role, state, machine);
 		//double val1 = myReward - reward(opponent, state, machine);
@@ -73,11 +87,8 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 	private double evalfnCD(Role role, MachineState state, StateMachine machine)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 
-		if (!timeIsUp) {
-			long timeLeft = getTime();
-			if (timeLeft < TIME_LIMIT) {
-				timeIsUp = true;
-			}
+		if (!timeIsUp && !hasTime()) {
+			timeIsUp = true;
 		}
 		double val = reward(role, state, machine) + mobility(role, state, machine);
 		if (val < 0) {
@@ -103,26 +114,104 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 	}
 
 	/**
-	 * Currently, we can get along just fine by using the Prover State Machine.
-	 * We will implement a more optimized PropNet State Machine later. The Cached
-	 * State Machine is a wrapper that reduces the number of calls to the Prover
-	 * State Machine by returning results of method calls that have been made previously.
+	 * We use our PropNet State Machine, which compiles the rules passed to initialize
+	 * into a propositional network and answers queries with a forward pass instead of
+	 * proving them (or with the prover, if the PropNet cannot be built). The Cached
+	 * State Machine is a wrapper that reduces the number of calls to the machine by
+	 * returning results of method calls that have been made previously.
 	 * (e.g. getNextState calls or getLegalMoves for the same combination of parameters)
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		this.checkedMachine = new INHCheckedStateMachine();
+		return new CachedStateMachine(this.checkedMachine);
 	}
 
 	/**
-	 * If we wanted to use the metagame (or start) clock to compute something
-	 * about the game (or explore the game tree), we could do so here. Since
-	 * this is just a legal player, there is no need for such computation.
+	 * Uses the start clock to check our PropNet against the prover on random
+	 * games, and switches to the prover if the two disagree on anything.
 	 */
 	@Override
 	public void start(long timeout)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		if (!this.checkedMachine.verify(timeout)) {
+			switchStateMachine(new CachedStateMachine(this.checkedMachine));
+		}
+		table.clear();
+		this.sentenceKeys.clear();  // A new game has new sentences
+	}
+
+	/*
+	 * Zobrist hash of a state: our PropNet states carry the XOR of a random key per true base
+	 * proposition already. For the prover's states the same is built here, from a random key
+	 * per sentence handed out the first time the sentence is seen, since their 32-bit hash
+	 * codes would collide in the table long before 64-bit keys do.
+	 */
+	private long hash(MachineState state) {
+		if (state instanceof INHBitSetMachineState) {
+			return ((INHBitSetMachineState) state).getFingerprint();
+		}
+		long key = 0;
+		for (GdlSentence sentence : state.getContents()) {
+			Long sentenceKey = this.sentenceKeys.get(sentence);
+			if (sentenceKey == null) {
+				sentenceKey = this.keyRandom.nextLong();
+				this.sentenceKeys.put(sentence, sentenceKey);
+			}
+			key ^= sentenceKey;
+		}
+		return key;
+	}
+
+	/* A min node is a state and the move we chose in it */
+	private long hash(MachineState state, Move action) {
+		return hash(state) ^ mix(action.hashCode() ^ MIN_NODE_KEY);
+	}
+
+	/* SplitMix64 finalizer */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/* The k-th move to search when the table says first should be searched first (or -1) */
+	private static int order(int k, int first) {
+		if (first < 0) {
+			return k;
+		}
+		if (k == 0) {
+			return first;
+		}
+		return (k <= first) ? k - 1 : k;
+	}
 
+	/* Results cut short by the clock are only evaluations, and would poison the table */
+	private void store(long key, int depth, double value, double alpha, double beta, int bestIndex) {
+		if (timeIsUp) {
+			return;
+		}
+		int bound = (value >= beta) ? INHTranspositionTable.LOWER : (value <= alpha) ? INHTranspositionTable.UPPER : INHTranspositionTable.EXACT;
+		table.store(key, depth, bound, value, bestIndex);
+	}
+
+	/*
+	 * What a stored result searched at least depth deep says within the window: the (fail-hard) value
+	 * to return, or NaN if the node has to be searched.
+	 */
+	private double cutoff(long key, long entry, int depth, double alpha, double beta) {
+		if (entry == INHTranspositionTable.NONE || INHTranspositionTable.getDepth(entry) < depth) {
+			return Double.NaN;
+		}
+		double value = table.getValue(key, entry);
+		switch (INHTranspositionTable.getBound(entry)) {
+		case INHTranspositionTable.EXACT:
+			return Math.max(alpha, Math.min(beta, value));
+		case INHTranspositionTable.LOWER:
+			return (value >= beta) ? beta : Double.NaN;
+		default:
+			return (value <= alpha) ? alpha : Double.NaN;
+		}
 	}
 
 	private double maxScore(Role role, MachineState state, StateMachine machine, int currDist, int maxDist, Move origMove, double alpha, double beta)
@@ -131,23 +220,44 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 			return findReward(role, state, machine);
 		}
 
-		long timeLeft = getTime();
-		if (timeLeft < TIME_LIMIT || currDist == maxDist) {
+		if (!hasTime() || currDist == maxDist) {
 			double val = evalfn(role, state, machine);
 			return val;
 		}
 
+		int depth = maxDist - currDist;
+		long key = hash(state);
+		long entry = table.probe(key);
+		double stored = cutoff(key, entry, depth, alpha, beta);
+		if (!Double.isNaN(stored)) {
+			return stored;
+		}
+		int first = (entry == INHTranspositionTable.NONE) ? -1 : INHTranspositionTable.getMove(entry);
+
 		List<Move> legalMoves = findLegals(role, state, machine);
+		if (first >= legalMoves.size()) {
+			first = -1;
+		}
 
-		for (int i = 0; i < legalMoves.size(); i++) {
+		double alphaOrig = alpha;
+		double best = 0;  // Best result so far, which may lie outside the window
+		int bestIndex = -1;
+		for (int k = 0; k < legalMoves.size(); k++) {
+			int i = order(k, first);
 			double result = minScore(role, state, machine, legalMoves.get(i), currDist + 1, maxDist, origMove, alpha, beta);
+			if (bestIndex < 0 || result > best) {
+				best = result;
+				bestIndex = i;
+			}
 			if (result > alpha) {
 				alpha = result;
 			}
 			if (alpha >= beta) {
+				store(key, depth, best, alphaOrig, beta, bestIndex);
 				return beta;
 			}
 		}
+		store(key, depth, alpha, alphaOrig, beta, bestIndex);
 		return alpha;//score;
 	}
 
@@ -155,11 +265,27 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 	private double minScore(Role role, MachineState state, StateMachine machine, Move action, int currDist, int maxDist, Move origMove, double alpha, double beta)
 			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 
+		int depth = maxDist - currDist;
+		long key = hash(state, action);
+		long entry = table.probe(key);
+		double stored = cutoff(key, entry, depth, alpha, beta);
+		if (!Double.isNaN(stored)) {
+			return stored;
+		}
+		int first = (entry == INHTranspositionTable.NONE) ? -1 : INHTranspositionTable.getMove(entry);
+
 		// get Opponents moves
 		List<Move> legalMoves = findLegals(opponent, state, machine);
+		if (first >= legalMoves.size()) {
+			first = -1;
+		}
 
 		// For each move, see which one minimizes our score
-		for (int i = 0; i < legalMoves.size(); i++) {
+		double betaOrig = beta;
+		double best = 0;  // Worst result for us so far, which may lie outside the window
+		int bestIndex = -1;
+		for (int k = 0; k < legalMoves.size(); k++) {
+			int i = order(k, first);
 
 			List<Move> currMove = new ArrayList<Move>();
 			if (role.equals(roles.get(0))) {
@@ -178,13 +304,19 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 //			currMove.add(legalMoves.get(i));
 
 			double result = maxScore(role, findNext(currMove, state, machine), machine, currDist, maxDist, origMove, alpha, beta);
+			if (bestIndex < 0 || result < best) {
+				best = result;
+				bestIndex = i;
+			}
 			if (result < beta) {
 				beta = result;
 			}
 			if (beta <= alpha) {
+				store(key, depth, best, alpha, betaOrig, bestIndex);
 				return alpha;
 			}
 		}
+		store(key, depth, beta, alpha, betaOrig, bestIndex);
 		return beta; // score
 	}
 
@@ -199,8 +331,7 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 		if (findTerminalp(state, machine)) {
 			return findReward(role, state, machine);
 		}
-		long timeLeft = getTime();
-		if (timeLeft < TIME_LIMIT) {
+		if (!hasTime()) {
 			double val = evalfnCD(role, state, machine);
 			return val;
 		}
@@ -238,9 +369,8 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 				currMove = legalMoves.get(i);
 			}
 		}
-		long timeLeft = getTime();
 		System.out.println();
-		System.out.println("Time Left: " + timeLeft);
+		System.out.println(clock);
 		System.out.println("I am compulsively playing: " + currMove);
 		return currMove;
 	}
@@ -312,6 +442,7 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 				return bestSavedMove;
 			}
 		}
+		System.out.println(table);
 		System.out.println("Best Saved Score: " + bestSavedScore);
 		System.out.println("Best Saved Depth: " + bestSavedDepth);
 		System.out.println("I am playing: " + bestMove);
@@ -345,17 +476,21 @@ public class INH_TimeLimitedMMPlayer2 extends GGPlayer {
 		//Gets our role (e.g. X or O in a game of tic tac toe)
 		Role role = getRole();
 		roles = machine.getRoles();
-		currTimeout = timeout;
+		clock.start(timeout);
+		lastCheck = System.nanoTime();
 		timeIsUp = false;
 
 		// Determine Player
 		opponents = findOpponents(role, machine);
+		Move move;
 		if (opponents.size() == 0) {
-			return runCompulsive(timeout, machine, state, role);
+			move = runCompulsive(timeout, machine, state, role);
 		} else {//if (opponents.size() >= 1) {
 			opponent = opponents.get(0);
-			return iterativeDeepening(timeout, role, state, machine);
+			move = iterativeDeepening(timeout, role, state, machine);
 		}
+		clock.finish();
+		return move;
 	}
 
 	/**
@@ -87,6 +87,15 @@ public abstract class StateMachineGamer extends Gamer
      */
     public abstract void stateMachineAbort();
 
+    /**
+     * Stops any thinking the player does in the background between moves
+     * (pondering). Called when a move request or the end of the match arrives,
+     * before the current state is advanced. The default does nothing.
+     */
+    protected void stopPondering()
+    {
+    }
+
     // =====================================================================
     // Next, methods which can be used by subclasses to get information about
     // the current state of the game, and tweak the state machine on the fly.
@@ -472,6 +481,7 @@ public abstract class StateMachineGamer extends Gamer
 	{
 		try
 		{
+			stopPondering();
 			stateMachine.doPerMoveWork();
 
 			List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
@@ -499,6 +509,7 @@ public abstract class StateMachineGamer extends Gamer
 	@Override
 	public void stop() throws StoppingException {
 		try {
+			stopPondering();
 			stateMachine.doPerMoveWork();
 
 			List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
@@ -527,6 +538,7 @@ public abstract class StateMachineGamer extends Gamer
 	@Override
 	public void abort() throws AbortingException {
 		try {
+			stopPondering();
 			stateMachineAbort();
 		}
 		catch (Exception e)